@@ -0,0 +1,45 @@
+/*
+ * Copyright 2000-2016 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bulenkov.iconloader.benchmarks;
+
+import com.bulenkov.iconloader.util.UIUtil;
+
+import java.lang.reflect.Field;
+import java.net.URL;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+final class BenchmarkUtil {
+  private BenchmarkUtil() { }
+
+  static void setRetina(boolean isRetina) throws Exception {
+    if (isRetina == UIUtil.isRetina()) {
+      return;
+    }
+
+    final Field ourRetina = UIUtil.class.getDeclaredField("ourRetina");
+    ourRetina.setAccessible(true);
+    ((AtomicBoolean)ourRetina.get(null)).set(isRetina);
+  }
+
+  static URL getResource(String path) {
+    final URL url = BenchmarkUtil.class.getResource(path);
+    if (url == null) {
+      throw new IllegalStateException("Can't find '" + path + "', are the test icons on the classpath?");
+    }
+    return url;
+  }
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright 2000-2016 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bulenkov.iconloader.benchmarks;
+
+import com.bulenkov.iconloader.IconLoader;
+import com.bulenkov.iconloader.IconWrapper;
+import org.openjdk.jmh.annotations.*;
+
+import javax.swing.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link IconLoader#getDisabledIcon(Icon)} for an icon whose disabled variant is already cached,
+ * and for a fresh source icon every time.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class DisabledIconBenchmark {
+  @Param({"false", "true"})
+  public boolean retina;
+
+  private Icon myIcon;
+
+  @Setup
+  public void setUp() throws Exception {
+    BenchmarkUtil.setRetina(retina);
+    myIcon = IconLoader.getIcon(BenchmarkUtil.getResource("/icons/print.png"));
+  }
+
+  @Benchmark
+  public Icon cached() {
+    return IconLoader.getDisabledIcon(myIcon);
+  }
+
+  @Benchmark
+  public Icon uncached() {
+    return IconLoader.getDisabledIcon(new IconWrapper(myIcon));
+  }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright 2000-2016 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bulenkov.iconloader.benchmarks;
+
+import com.bulenkov.iconloader.IconAtlas;
+import com.bulenkov.iconloader.IconWrapper;
+import com.bulenkov.iconloader.util.JBImageIcon;
+
+import javax.swing.*;
+import java.awt.image.BufferedImage;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Measures the retained heap per loaded 16x16 icon, standalone as {@link com.bulenkov.iconloader.IconLoader}
+ * used to return it and packed into an {@link IconAtlas}.
+ * <p/>
+ * Not a JMH benchmark, run it directly: {@code IconFootprint [icon count]}
+ */
+public class IconFootprint {
+  private static final int SIZE = 16;
+  private static final int PAGE_SIZE = 512;
+  // the atlas leaves a pixel of padding after each icon
+  private static final int ICONS_PER_PAGE = ((PAGE_SIZE + 1) / (SIZE + 1)) * ((PAGE_SIZE + 1) / (SIZE + 1));
+
+  public static void main(String[] args) {
+    final int count = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+    final String[] keys = new String[count];
+    for (int i = 0; i < count; i++) {
+      keys[i] = "file:/icons/icon" + i + ".png";
+    }
+
+    long base = usedMemory();
+    final Map<String, Icon> standalone = new HashMap<String, Icon>();
+    for (String key : keys) {
+      standalone.put(key, new IconWrapper(new JBImageIcon(createImage())));
+    }
+    report("standalone", count, usedMemory() - base, (long)count * SIZE * SIZE * 4);
+    standalone.clear();
+
+    base = usedMemory();
+    final IconAtlas atlas = new IconAtlas(PAGE_SIZE, SIZE, (count + ICONS_PER_PAGE - 1) / ICONS_PER_PAGE);
+    for (String key : keys) {
+      atlas.put(key, createImage());
+    }
+    report("atlas", count, usedMemory() - base, (long)atlas.getPageCount() * PAGE_SIZE * PAGE_SIZE * 4);
+    if (atlas.getIconCount() != count) {
+      throw new IllegalStateException("Only " + atlas.getIconCount() + " icons were packed");
+    }
+  }
+
+  private static BufferedImage createImage() {
+    //noinspection UndesirableClassUsage
+    return new BufferedImage(SIZE, SIZE, BufferedImage.TYPE_INT_ARGB_PRE);
+  }
+
+  private static void report(String name, int count, long bytes, long pixelBytes) {
+    System.out.printf("%-10s %8d bytes per icon, %6d without pixels%n", name, bytes / count, (bytes - pixelBytes) / count);
+  }
+
+  private static long usedMemory() {
+    final Runtime runtime = Runtime.getRuntime();
+    long used = Long.MAX_VALUE;
+    // a few collections let the heap settle
+    for (int i = 0; i < 5; i++) {
+      System.gc();
+      used = Math.min(used, runtime.totalMemory() - runtime.freeMemory());
+    }
+    return used;
+  }
+}
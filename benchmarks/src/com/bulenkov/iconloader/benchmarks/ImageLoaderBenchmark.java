@@ -0,0 +1,59 @@
+/*
+ * Copyright 2000-2016 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bulenkov.iconloader.benchmarks;
+
+import com.bulenkov.iconloader.util.ImageLoader;
+import org.openjdk.jmh.annotations.*;
+
+import java.awt.*;
+import java.net.URL;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decoding cost of {@link ImageLoader#loadFromUrl(URL, boolean, java.awt.image.ImageFilter)},
+ * for an icon with an {@code @2x} variant and for one without.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class ImageLoaderBenchmark {
+  @Param({"false", "true"})
+  public boolean retina;
+
+  private URL myWithRetinaVariant;
+  private URL myWithoutRetinaVariant;
+
+  @Setup
+  public void setUp() throws Exception {
+    BenchmarkUtil.setRetina(retina);
+    myWithRetinaVariant = BenchmarkUtil.getResource("/icons/print.png");
+    myWithoutRetinaVariant = BenchmarkUtil.getResource("/icons/printPreview.png");
+  }
+
+  @Benchmark
+  public Image loadWith2xVariant() {
+    return ImageLoader.loadFromUrl(myWithRetinaVariant, retina, null);
+  }
+
+  @Benchmark
+  public Image loadWithout2xVariant() {
+    return ImageLoader.loadFromUrl(myWithoutRetinaVariant, retina, null);
+  }
+}
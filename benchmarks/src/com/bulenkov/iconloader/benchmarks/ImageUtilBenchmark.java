@@ -0,0 +1,60 @@
+/*
+ * Copyright 2000-2016 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bulenkov.iconloader.benchmarks;
+
+import com.bulenkov.iconloader.util.ImageLoader;
+import com.bulenkov.iconloader.util.ImageUtil;
+import com.bulenkov.iconloader.util.UIUtil;
+import org.openjdk.jmh.annotations.*;
+
+import javax.swing.*;
+import java.awt.*;
+import java.awt.image.FilteredImageSource;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Gray filtering through {@link ImageUtil#filter(Image, java.awt.image.ImageFilter)}
+ * compared with the {@link FilteredImageSource} pipeline it replaces.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class ImageUtilBenchmark {
+  private Image myImage;
+  private GrayFilter myFilter;
+
+  @Setup
+  public void setUp() throws Exception {
+    myImage = ImageLoader.loadFromUrl(BenchmarkUtil.getResource("/icons/print@2x.png"), false, null);
+    myFilter = UIUtil.getGrayFilter();
+  }
+
+  @Benchmark
+  public Image filter() {
+    return ImageUtil.filter(myImage, myFilter);
+  }
+
+  @Benchmark
+  public Image producerPipeline() {
+    final Image image = Toolkit.getDefaultToolkit().createImage(new FilteredImageSource(myImage.getSource(), myFilter));
+    // ImageIcon waits until the producer has delivered all pixels
+    return new ImageIcon(image).getImage();
+  }
+}
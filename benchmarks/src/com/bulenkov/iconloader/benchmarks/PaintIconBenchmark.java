@@ -0,0 +1,84 @@
+/*
+ * Copyright 2000-2016 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bulenkov.iconloader.benchmarks;
+
+import com.bulenkov.iconloader.IconLoader;
+import com.bulenkov.iconloader.util.ImageLoader;
+import com.bulenkov.iconloader.util.ImmutableImageIcon;
+import org.openjdk.jmh.annotations.*;
+
+import javax.swing.*;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Painting a loaded icon into an offscreen image whose graphics is scaled like the screen would be.
+ * In the steady state painting should allocate nothing, which {@code -prof gc} reports as about 0 B/op.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class PaintIconBenchmark {
+  @Param({"false", "true"})
+  public boolean retina;
+
+  private Icon myIcon;
+  private BufferedImage myTarget;
+  private Graphics2D myGraphics;
+  private Icon myFractionalIcon;
+  private Graphics2D myFractionalGraphics;
+
+  @Setup
+  public void setUp() throws Exception {
+    BenchmarkUtil.setRetina(retina);
+    myIcon = IconLoader.getIcon(BenchmarkUtil.getResource("/icons/print.png"));
+    final int scale = retina ? 2 : 1;
+    //noinspection UndesirableClassUsage
+    myTarget = new BufferedImage(64 * scale, 64 * scale, BufferedImage.TYPE_INT_ARGB_PRE);
+    myGraphics = myTarget.createGraphics();
+    myGraphics.scale(scale, scale);
+
+    myFractionalIcon = new ImmutableImageIcon(ImageLoader.loadFromUrl(BenchmarkUtil.getResource("/icons/print.png"), 1.5f, null));
+    myFractionalGraphics = myTarget.createGraphics();
+    myFractionalGraphics.scale(1.5, 1.5);
+  }
+
+  @TearDown
+  public void tearDown() {
+    myGraphics.dispose();
+    myFractionalGraphics.dispose();
+  }
+
+  @Benchmark
+  public BufferedImage paintIcon() {
+    myIcon.paintIcon(null, myGraphics, 8, 8);
+    return myTarget;
+  }
+
+  /**
+   * A 1.5x screen, painting the {@code @2x} variant resampled for it.
+   */
+  @Benchmark
+  public BufferedImage paintFractionalScale() {
+    myFractionalIcon.paintIcon(null, myFractionalGraphics, 8, 8);
+    return myTarget;
+  }
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright 2000-2016 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bulenkov.iconloader;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import javax.swing.*;
+import java.awt.*;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.WeakHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Icon which decodes the image on a background executor.
+ * Until the image is ready it paints the placeholder and reports the size it was created with;
+ * once it is, every component the icon was painted on is repainted, and revalidated if the
+ * size of the image differs.
+ *
+ * @see IconLoader#getIconAsync(URL, Icon, Dimension)
+ */
+public class AsyncIcon implements Icon {
+  private static final Icon BROKEN = new ImageIcon();
+
+  private final URL myUrl;
+  private final float myScale;
+  private volatile int myWidth;
+  private volatile int myHeight;
+  private final Icon myPlaceholder;
+  private volatile Icon myDelegate;
+
+  // components painted before the image was ready, guarded by this
+  private final WeakHashMap<Component, Boolean> myComponents = new WeakHashMap<Component, Boolean>();
+
+  AsyncIcon(@NotNull URL url, float scale, int width, int height, @Nullable Icon placeholder) {
+    myUrl = url;
+    myScale = scale;
+    myWidth = width;
+    myHeight = height;
+    myPlaceholder = placeholder;
+  }
+
+  void load(@NotNull Executor executor) {
+    try {
+      executor.execute(new Runnable() {
+        @Override
+        public void run() {
+          Icon delegate = null;
+          try {
+            delegate = IconLoader.loadPackedIcon(myUrl, myScale);
+          }
+          finally {
+            loaded(delegate);
+          }
+        }
+      });
+    }
+    catch (RejectedExecutionException e) {
+      loaded(null);
+    }
+  }
+
+  @NotNull
+  public URL getUrl() {
+    return myUrl;
+  }
+
+  /**
+   * @return true if loading has finished, either successfully or not
+   */
+  public boolean isLoaded() {
+    return myDelegate != null;
+  }
+
+  @Nullable
+  public Icon getPlaceholder() {
+    return myPlaceholder;
+  }
+
+  private void loaded(@Nullable Icon delegate) {
+    final List<Component> components;
+    boolean resized = false;
+    synchronized (this) {
+      if (delegate != null && (delegate.getIconWidth() != myWidth || delegate.getIconHeight() != myHeight)) {
+        myWidth = delegate.getIconWidth();
+        myHeight = delegate.getIconHeight();
+        resized = true;
+      }
+      myDelegate = delegate == null ? BROKEN : delegate;
+      components = new ArrayList<Component>(myComponents.keySet());
+      myComponents.clear();
+    }
+    if (delegate == null || components.isEmpty()) return;
+
+    final boolean revalidate = resized;
+    SwingUtilities.invokeLater(new Runnable() {
+      @Override
+      public void run() {
+        for (Component component : components) {
+          if (component == null) continue;
+          if (revalidate) {
+            if (component instanceof JComponent) {
+              ((JComponent)component).revalidate();
+            }
+            else {
+              component.invalidate();
+            }
+          }
+          component.repaint();
+        }
+      }
+    });
+  }
+
+  @Override
+  public void paintIcon(Component c, Graphics g, int x, int y) {
+    Icon delegate = myDelegate;
+    if (delegate == null && c != null) {
+      synchronized (this) {
+        delegate = myDelegate;
+        if (delegate == null) {
+          myComponents.put(c, Boolean.TRUE);
+        }
+      }
+    }
+
+    if (delegate != null && delegate != BROKEN) {
+      delegate.paintIcon(c, g, x, y);
+    }
+    else if (myPlaceholder != null) {
+      myPlaceholder.paintIcon(c, g, x, y);
+    }
+  }
+
+  @Override
+  public int getIconWidth() {
+    return myWidth;
+  }
+
+  @Override
+  public int getIconHeight() {
+    return myHeight;
+  }
+}
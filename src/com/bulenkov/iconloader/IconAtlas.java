@@ -0,0 +1,406 @@
+/*
+ * Copyright 2000-2016 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bulenkov.iconloader;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import javax.swing.*;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+
+/**
+ * Packs small icon images into a few large shared pages, one set of pages per scale.
+ * <p/>
+ * Icons returned by the atlas paint a sub-rectangle of their page, so Java2D deals with
+ * a handful of large surfaces instead of one surface per icon.
+ * <p/>
+ * Every packed icon gets an int id. Its sizes and position are kept in primitive arrays indexed
+ * by the id, and the icon itself only references the atlas storage and the id, so a packed icon
+ * costs a few dozen bytes of heap besides its pixels and key.
+ * <p/>
+ * Pages are only freed by {@link #clear()}. The number of pages is bounded, and once every
+ * page is in use {@link #put(String, Image)} declines further images.
+ *
+ * @see IconLoader#setIconAtlas(IconAtlas)
+ */
+public class IconAtlas {
+  private static final int PADDING = 1;
+  private static final int DEFAULT_MAX_PAGE_COUNT = 16;
+
+  private final int myPageSize;
+  private final int myMaxIconSize;
+  private final int myMaxPageCount;
+  private volatile Storage myStorage = new Storage();
+
+  public IconAtlas() {
+    this(512, 64);
+  }
+
+  /**
+   * @param pageSize    width and height of a page, in pixels
+   * @param maxIconSize images larger than this in either dimension, in pixels, are not packed
+   */
+  public IconAtlas(int pageSize, int maxIconSize) {
+    this(pageSize, maxIconSize, DEFAULT_MAX_PAGE_COUNT);
+  }
+
+  /**
+   * @param pageSize     width and height of a page, in pixels
+   * @param maxIconSize  images larger than this in either dimension, in pixels, are not packed
+   * @param maxPageCount pages the atlas may allocate, each taking {@code pageSize * pageSize * 4} bytes
+   */
+  public IconAtlas(int pageSize, int maxIconSize, int maxPageCount) {
+    if (maxPageCount < 1 || maxPageCount > Short.MAX_VALUE) {
+      throw new IllegalArgumentException("Illegal page count " + maxPageCount);
+    }
+    if (maxIconSize + PADDING > pageSize) {
+      throw new IllegalArgumentException("Icons of size " + maxIconSize + " don't fit a page of size " + pageSize);
+    }
+    if (pageSize > Short.MAX_VALUE) {
+      throw new IllegalArgumentException("Page size " + pageSize + " is too large");
+    }
+    myPageSize = pageSize;
+    myMaxIconSize = maxIconSize;
+    myMaxPageCount = maxPageCount;
+  }
+
+  @Nullable
+  public Icon get(@NotNull String key) {
+    final Storage storage = myStorage;
+    final int id = storage.find(key);
+    return id < 0 ? null : storage.getIcon(id);
+  }
+
+  /**
+   * @return id of the icon packed under the key, or -1 if there is none
+   */
+  public int getId(@NotNull String key) {
+    return myStorage.find(key);
+  }
+
+  /**
+   * @param id id returned by {@link #getId(String)} since the last {@link #clear()}
+   */
+  @NotNull
+  public Icon getIcon(int id) {
+    final Icon icon = id < 0 ? null : myStorage.getIcon(id);
+    if (icon == null) {
+      throw new IllegalArgumentException("No icon with id " + id);
+    }
+    return icon;
+  }
+
+  /**
+   * Copies the image into the atlas.
+   *
+   * @return icon painting the packed image, or null if the image is too large, not loaded,
+   *         or the atlas is full
+   */
+  @Nullable
+  public Icon put(@NotNull String key, @NotNull Image image) {
+    Icon icon = get(key);
+    if (icon != null) return icon;
+
+    Image pixels = image;
+    if (image instanceof JBHiDPIScaledImage && ((JBHiDPIScaledImage)image).getDelegate() != null) {
+      pixels = ((JBHiDPIScaledImage)image).getDelegate();
+    }
+    final int width = image.getWidth(null);
+    final int height = image.getHeight(null);
+    final int pixelWidth = pixels.getWidth(null);
+    final int pixelHeight = pixels.getHeight(null);
+    if (width <= 0 || height <= 0 || pixelWidth > myMaxIconSize || pixelHeight > myMaxIconSize) {
+      return null;
+    }
+    final int scale = Math.max(1, Math.round((float)pixelWidth / width));
+
+    synchronized (this) {
+      final Storage storage = myStorage;
+      final int id = storage.find(key);
+      if (id >= 0) return storage.getIcon(id);
+
+      final int page = storage.findPage(scale, pixelWidth, pixelHeight, myPageSize, myMaxPageCount);
+      if (page < 0) return null;
+      final Page target = storage.myColumns.myPages[page];
+      final int offset = target.allocate(pixelWidth, pixelHeight);
+      final Graphics2D g = target.myImage.createGraphics();
+      g.setComposite(AlphaComposite.Src);
+      final boolean complete = g.drawImage(pixels, offset >>> 16, offset & 0xffff, null);
+      g.dispose();
+      if (!complete) return null;
+
+      return storage.add(key, page, offset, pack(width, height), pack(pixelWidth, pixelHeight));
+    }
+  }
+
+  public int getIconCount() {
+    return myStorage.myCount;
+  }
+
+  public synchronized int getPageCount() {
+    return myStorage.myPageCount;
+  }
+
+  /**
+   * Removes all icons. Icons returned before keep painting, but their ids become invalid.
+   */
+  public synchronized void clear() {
+    myStorage = new Storage();
+  }
+
+  private static int pack(int high, int low) {
+    return high << 16 | low;
+  }
+
+  /**
+   * Icons and pages of an atlas. Only the atlas modifies it, under the atlas lock.
+   * <p/>
+   * Readers first read the volatile icon count, which is written last, and then the volatile columns.
+   * The columns are replaced as a whole, with their contents copied before, when they grow, so a reader
+   * sees the entries of every icon below the count in whichever columns it gets.
+   */
+  private static final class Storage {
+    private static final int INITIAL_CAPACITY = 64;
+
+    private volatile Columns myColumns = new Columns(INITIAL_CAPACITY, new Page[4]);
+    private volatile int myCount;
+
+    private int myPageCount;
+    // scale -> index of the page icons of that scale are currently added to
+    private int[] myCurrentPages = new int[0];
+
+    private int find(@NotNull String key) {
+      final int count = myCount;
+      final Columns columns = myColumns;
+      final String[] keys = columns.myKeys;
+      final int[] slots = columns.mySlots;
+      final int mask = slots.length - 1;
+      for (int i = hash(key) & mask; slots[i] != 0; i = (i + 1) & mask) {
+        final int id = slots[i] - 1;
+        if (id < count && key.equals(keys[id])) return id;
+      }
+      return -1;
+    }
+
+    @Nullable
+    private Icon getIcon(int id) {
+      if (id >= myCount) return null;
+      return myColumns.myIcons[id];
+    }
+
+    @NotNull
+    private Icon add(@NotNull String key, int page, int offset, int size, int pixelSize) {
+      final int id = myCount;
+      Columns columns = myColumns;
+      if (id == columns.myKeys.length) {
+        columns = columns.grow(id);
+        myColumns = columns;
+      }
+      columns.myKeys[id] = key;
+      columns.mySizes[id] = size;
+      columns.myPixelSizes[id] = pixelSize;
+      columns.myOffsets[id] = offset;
+      columns.myPageIds[id] = (short)page;
+      final Icon icon = new AtlasIcon(this, id);
+      columns.myIcons[id] = icon;
+      insert(columns.mySlots, key, id);
+      myCount = id + 1;
+      return icon;
+    }
+
+    private static void insert(@NotNull int[] slots, @NotNull String key, int id) {
+      final int mask = slots.length - 1;
+      int i = hash(key) & mask;
+      while (slots[i] != 0) {
+        i = (i + 1) & mask;
+      }
+      slots[i] = id + 1;
+    }
+
+    private static int hash(@NotNull String key) {
+      final int h = key.hashCode();
+      return h ^ (h >>> 16);
+    }
+
+    /**
+     * @return index of the page to add the icon to, or -1 if it doesn't fit and no more pages may be allocated
+     */
+    private int findPage(int scale, int width, int height, int pageSize, int maxPageCount) {
+      if (scale >= myCurrentPages.length) {
+        final int old = myCurrentPages.length;
+        myCurrentPages = Arrays.copyOf(myCurrentPages, scale + 1);
+        Arrays.fill(myCurrentPages, old, myCurrentPages.length, -1);
+      }
+      Columns columns = myColumns;
+      final int current = myCurrentPages[scale];
+      if (current >= 0 && columns.myPages[current].fits(width, height)) {
+        return current;
+      }
+      if (myPageCount == maxPageCount) {
+        return -1;
+      }
+      if (myPageCount == columns.myPages.length) {
+        columns = new Columns(columns, Arrays.copyOf(columns.myPages, myPageCount * 2));
+        myColumns = columns;
+      }
+      // the page is only used by icons added after it, which are published by the count
+      columns.myPages[myPageCount] = new Page(pageSize);
+      myCurrentPages[scale] = myPageCount;
+      return myPageCount++;
+    }
+  }
+
+  /**
+   * Per icon entries of a {@link Storage}, indexed by icon id, and its pages.
+   */
+  private static final class Columns {
+    private final String[] myKeys;
+    // open addressing hash table of id + 1, 0 for an empty slot
+    private final int[] mySlots;
+    // logical width << 16 | height
+    private final int[] mySizes;
+    // width << 16 | height of the pixels in the page
+    private final int[] myPixelSizes;
+    // x << 16 | y of the pixels in the page
+    private final int[] myOffsets;
+    private final short[] myPageIds;
+    private final Icon[] myIcons;
+    private final Page[] myPages;
+
+    private Columns(int capacity, @NotNull Page[] pages) {
+      myKeys = new String[capacity];
+      mySlots = new int[capacity * 2];
+      mySizes = new int[capacity];
+      myPixelSizes = new int[capacity];
+      myOffsets = new int[capacity];
+      myPageIds = new short[capacity];
+      myIcons = new Icon[capacity];
+      myPages = pages;
+    }
+
+    private Columns(@NotNull Columns columns, @NotNull Page[] pages) {
+      myKeys = columns.myKeys;
+      mySlots = columns.mySlots;
+      mySizes = columns.mySizes;
+      myPixelSizes = columns.myPixelSizes;
+      myOffsets = columns.myOffsets;
+      myPageIds = columns.myPageIds;
+      myIcons = columns.myIcons;
+      myPages = pages;
+    }
+
+    private Columns(@NotNull Columns columns, int capacity) {
+      myKeys = Arrays.copyOf(columns.myKeys, capacity);
+      mySlots = new int[capacity * 2];
+      mySizes = Arrays.copyOf(columns.mySizes, capacity);
+      myPixelSizes = Arrays.copyOf(columns.myPixelSizes, capacity);
+      myOffsets = Arrays.copyOf(columns.myOffsets, capacity);
+      myPageIds = Arrays.copyOf(columns.myPageIds, capacity);
+      myIcons = Arrays.copyOf(columns.myIcons, capacity);
+      myPages = columns.myPages;
+    }
+
+    /**
+     * @return copy of the columns with twice the capacity, holding the first {@code count} icons
+     */
+    @NotNull
+    private Columns grow(int count) {
+      final Columns grown = new Columns(this, myKeys.length * 2);
+      for (int id = 0; id < count; id++) {
+        Storage.insert(grown.mySlots, grown.myKeys[id], id);
+      }
+      return grown;
+    }
+  }
+
+  /**
+   * Page filled with shelves: icons are placed left to right, and a new shelf
+   * starts below the tallest icon of the current one when the row is full.
+   */
+  private static final class Page {
+    private final BufferedImage myImage;
+    private final int mySize;
+    private int myShelfY;
+    private int myShelfHeight;
+    private int myX;
+
+    private Page(int size) {
+      //noinspection UndesirableClassUsage
+      myImage = new BufferedImage(size, size, BufferedImage.TYPE_INT_ARGB_PRE);
+      mySize = size;
+    }
+
+    private boolean fits(int width, int height) {
+      if (myX + width <= mySize && myShelfY + height <= mySize) return true;
+      return width <= mySize && myShelfY + myShelfHeight + height <= mySize;
+    }
+
+    /**
+     * @return x << 16 | y of the allocated rectangle
+     */
+    private int allocate(int width, int height) {
+      if (myX + width > mySize || myShelfY + height > mySize) {
+        myShelfY += myShelfHeight;
+        myShelfHeight = 0;
+        myX = 0;
+      }
+      final int at = pack(myX, myShelfY);
+      myX += width + PADDING;
+      myShelfHeight = Math.max(myShelfHeight, height + PADDING);
+      return at;
+    }
+  }
+
+  private static final class AtlasIcon implements Icon {
+    private final Storage myStorage;
+    private final int myId;
+
+    private AtlasIcon(Storage storage, int id) {
+      myStorage = storage;
+      myId = id;
+    }
+
+    @Override
+    public void paintIcon(Component c, Graphics g, int x, int y) {
+      final Storage storage = myStorage;
+      // the count is read before the columns, see Storage
+      if (myId >= storage.myCount) return;
+      final Columns columns = storage.myColumns;
+      final int size = columns.mySizes[myId];
+      final int pixelSize = columns.myPixelSizes[myId];
+      final int offset = columns.myOffsets[myId];
+      final int sourceX = offset >>> 16;
+      final int sourceY = offset & 0xffff;
+      g.drawImage(columns.myPages[columns.myPageIds[myId]].myImage, x, y, x + (size >>> 16), y + (size & 0xffff),
+                  sourceX, sourceY, sourceX + (pixelSize >>> 16), sourceY + (pixelSize & 0xffff), c);
+    }
+
+    @Override
+    public int getIconWidth() {
+      final Storage storage = myStorage;
+      return myId < storage.myCount ? storage.myColumns.mySizes[myId] >>> 16 : 0;
+    }
+
+    @Override
+    public int getIconHeight() {
+      final Storage storage = myStorage;
+      return myId < storage.myCount ? storage.myColumns.mySizes[myId] & 0xffff : 0;
+    }
+  }
+}
@@ -0,0 +1,230 @@
+/*
+ * Copyright 2000-2016 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bulenkov.iconloader;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.awt.*;
+import java.awt.color.ColorSpace;
+import java.awt.image.*;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Single file holding pre-decoded pixels of many icons, produced by {@link IconBundleCompiler}.
+ * <p/>
+ * The file is memory-mapped once and icons are resolved by path with a hash lookup,
+ * instead of opening a URL connection and decoding a separate resource per icon.
+ *
+ * @see IconLoader#addBundle(IconBundle)
+ */
+public class IconBundle {
+  static final int MAGIC = 0x49434e42; // "ICNB"
+  static final int VERSION = 1;
+
+  private static final ColorModel ARGB_PRE = new DirectColorModel(
+    ColorSpace.getInstance(ColorSpace.CS_sRGB), 32, 0x00ff0000, 0x0000ff00, 0x000000ff, 0xff000000, true, DataBuffer.TYPE_INT);
+
+  private final ByteBuffer myData;
+  // path -> entries for that path, one per scale
+  private final Map<String, Entry[]> myEntries;
+  // decoded URL of the directory the bundle was compiled from, ending with '/'
+  private final String myRoot;
+
+  private IconBundle(@NotNull ByteBuffer data, @NotNull Map<String, Entry[]> entries, @Nullable String root) {
+    myData = data;
+    myEntries = entries;
+    myRoot = root;
+  }
+
+  /**
+   * Opens a bundle compiled from the root of a jar: icons are matched by their jar entry name.
+   */
+  @NotNull
+  public static IconBundle open(@NotNull File file) throws IOException {
+    return open(file, null);
+  }
+
+  /**
+   * @param root URL of the directory the bundle was compiled from. Only icons below it are served from the bundle.
+   *             If null, icons are matched by their jar entry name, and icons outside jars aren't served.
+   */
+  @NotNull
+  public static IconBundle open(@NotNull File file, @Nullable URL root) throws IOException {
+    final MappedByteBuffer data;
+    final FileInputStream stream = new FileInputStream(file);
+    try {
+      final FileChannel channel = stream.getChannel();
+      data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    }
+    finally {
+      stream.close();
+    }
+
+    try {
+      if (data.getInt() != MAGIC) throw new IOException(file + " is not an icon bundle");
+      if (data.getInt() != VERSION) throw new IOException(file + " has unsupported version");
+      final int count = data.getInt();
+      final int dataStart = data.getInt();
+      final Map<String, Entry[]> entries = new HashMap<String, Entry[]>(count * 2);
+      for (int i = 0; i < count; i++) {
+        final byte[] path = new byte[data.getShort() & 0xffff];
+        data.get(path);
+        final Entry entry = new Entry(data.getFloat(), data.getInt(), data.getInt(), dataStart + data.getInt());
+        final String key = new String(path, "UTF-8");
+        final Entry[] existing = entries.get(key);
+        if (existing == null) {
+          entries.put(key, new Entry[]{entry});
+        }
+        else {
+          final Entry[] merged = new Entry[existing.length + 1];
+          System.arraycopy(existing, 0, merged, 0, existing.length);
+          merged[existing.length] = entry;
+          entries.put(key, merged);
+        }
+      }
+      String rootPath = null;
+      if (root != null) {
+        rootPath = decode(root.toExternalForm());
+        if (!rootPath.endsWith("/")) {
+          rootPath += "/";
+        }
+      }
+      return new IconBundle(data, entries, rootPath);
+    }
+    catch (RuntimeException e) {
+      throw new IOException(file + " is corrupted: " + e);
+    }
+  }
+
+  public int size() {
+    return myEntries.size();
+  }
+
+  public boolean contains(@NotNull String path) {
+    return myEntries.containsKey(path);
+  }
+
+  /**
+   * @param path  bundle path with '/' separators, e.g. {@code icons/print.png}
+   * @param scale scale of the variant, e.g. 2 for {@code icons/print@2x.png}
+   * @return the pixels of the variant, null if the bundle has no such variant
+   */
+  @Nullable
+  public BufferedImage getImage(@NotNull String path, float scale) {
+    final Entry[] entries = myEntries.get(path);
+    if (entries == null) return null;
+    for (Entry entry : entries) {
+      if (entry.myScale == scale) {
+        return createImage(entry);
+      }
+    }
+    return null;
+  }
+
+  /**
+   * @return width and height in pixels of the variant, null if the bundle has no such variant
+   */
+  @Nullable
+  public Dimension getImageSize(@NotNull String path, float scale) {
+    final Entry[] entries = myEntries.get(path);
+    if (entries == null) return null;
+    for (Entry entry : entries) {
+      if (entry.myScale == scale) {
+        return new Dimension(entry.myWidth, entry.myHeight);
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Maps an icon URL to a bundle path: the URL relative to the root the bundle was opened with,
+   * or the entry name for a jar URL if there is no root.
+   *
+   * @return the bundle path, or null if the bundle doesn't contain the icon
+   */
+  @Nullable
+  public String findPath(@NotNull URL url) {
+    final String external = decode(url.toExternalForm());
+    final String path;
+    if (myRoot != null) {
+      if (!external.startsWith(myRoot)) return null;
+      path = external.substring(myRoot.length());
+    }
+    else {
+      final int separator = external.lastIndexOf("!/");
+      if (!external.startsWith("jar:") || separator < 0) return null;
+      path = external.substring(separator + 2);
+    }
+    return myEntries.containsKey(path) ? path : null;
+  }
+
+  /**
+   * @return the URL with percent escapes decoded, as bundle paths are stored
+   */
+  @NotNull
+  private static String decode(@NotNull String url) {
+    if (url.indexOf('%') < 0) return url;
+    try {
+      // URLDecoder would turn '+' into a space, which is only right for form data
+      return URLDecoder.decode(url.replace("+", "%2B"), "UTF-8");
+    }
+    catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(e);
+    }
+    catch (IllegalArgumentException e) {
+      return url;
+    }
+  }
+
+  @NotNull
+  private BufferedImage createImage(@NotNull Entry entry) {
+    final int[] pixels = new int[entry.myWidth * entry.myHeight];
+    final ByteBuffer data = myData.duplicate();
+    data.position(entry.myOffset);
+    data.asIntBuffer().get(pixels);
+
+    final WritableRaster raster = Raster.createPackedRaster(
+      new DataBufferInt(pixels, pixels.length), entry.myWidth, entry.myHeight, entry.myWidth,
+      new int[]{0x00ff0000, 0x0000ff00, 0x000000ff, 0xff000000}, null);
+    return new BufferedImage(ARGB_PRE, raster, true, null);
+  }
+
+  private static final class Entry {
+    private final float myScale;
+    private final int myWidth;
+    private final int myHeight;
+    private final int myOffset;
+
+    private Entry(float scale, int width, int height, int offset) {
+      myScale = scale;
+      myWidth = width;
+      myHeight = height;
+      myOffset = offset;
+    }
+  }
+}
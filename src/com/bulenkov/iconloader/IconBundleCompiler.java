@@ -0,0 +1,132 @@
+/*
+ * Copyright 2000-2016 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bulenkov.iconloader;
+
+import com.bulenkov.iconloader.util.ImageIODecoder;
+import com.bulenkov.iconloader.util.ImageLoader;
+import org.jetbrains.annotations.NotNull;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Packs a directory of icons into an {@link IconBundle} file.
+ * <p/>
+ * Every image below the directory is decoded once at build time. Variants named like
+ * {@code print@2x.png} are stored as scale 2 of {@code print.png}.
+ * <p/>
+ * Usage: {@code IconBundleCompiler <icons directory> <bundle file>}
+ */
+public class IconBundleCompiler {
+  private static final Pattern SCALE_SUFFIX = Pattern.compile("(.*)@(\\d+(?:\\.\\d+)?)x(\\.[^./]+)$");
+  private static final List<String> EXTENSIONS = Arrays.asList("png", "gif", "jpg", "jpeg");
+
+  private IconBundleCompiler() { }
+
+  public static void main(String[] args) throws IOException {
+    if (args.length != 2) {
+      System.err.println("Usage: IconBundleCompiler <icons directory> <bundle file>");
+      System.exit(1);
+    }
+    final int count = compile(new File(args[0]), new File(args[1]));
+    System.out.println("Packed " + count + " images into " + args[1]);
+  }
+
+  /**
+   * @return number of images written to the bundle
+   */
+  public static int compile(@NotNull File directory, @NotNull File bundle) throws IOException {
+    final List<String> paths = new ArrayList<String>();
+    collect(directory, "", paths);
+
+    final ByteArrayOutputStream index = new ByteArrayOutputStream();
+    final DataOutputStream indexOut = new DataOutputStream(index);
+    final ByteArrayOutputStream pixels = new ByteArrayOutputStream();
+    final DataOutputStream pixelsOut = new DataOutputStream(pixels);
+    int count = 0;
+    for (String path : paths) {
+      final File file = new File(directory, path.replace('/', File.separatorChar));
+      final ByteBuffer bytes = ImageLoader.urlBytes(file.toURI().toURL().toString(), true);
+      final Image decoded = bytes == null ? null : new ImageIODecoder().decode(bytes);
+      if (!(decoded instanceof BufferedImage)) {
+        System.err.println("Skipping " + file + ": unsupported image");
+        continue;
+      }
+      final BufferedImage image = (BufferedImage)decoded;
+
+      String bundlePath = path;
+      float scale = 1;
+      final Matcher matcher = SCALE_SUFFIX.matcher(path);
+      if (matcher.matches()) {
+        bundlePath = matcher.group(1) + matcher.group(3);
+        scale = Float.parseFloat(matcher.group(2));
+      }
+
+      final byte[] pathBytes = bundlePath.getBytes("UTF-8");
+      indexOut.writeShort(pathBytes.length);
+      indexOut.write(pathBytes);
+      indexOut.writeFloat(scale);
+      indexOut.writeInt(image.getWidth());
+      indexOut.writeInt(image.getHeight());
+      indexOut.writeInt(pixels.size());
+
+      final int[] argb = new int[image.getWidth() * image.getHeight()];
+      image.getRaster().getDataElements(0, 0, image.getWidth(), image.getHeight(), argb);
+      for (int pixel : argb) {
+        pixelsOut.writeInt(pixel);
+      }
+      count++;
+    }
+    indexOut.flush();
+    pixelsOut.flush();
+
+    final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(bundle)));
+    try {
+      out.writeInt(IconBundle.MAGIC);
+      out.writeInt(IconBundle.VERSION);
+      out.writeInt(count);
+      out.writeInt(4 * 4 + index.size());
+      index.writeTo(out);
+      pixels.writeTo(out);
+    }
+    finally {
+      out.close();
+    }
+    return count;
+  }
+
+  private static void collect(@NotNull File directory, @NotNull String prefix, @NotNull List<String> paths) {
+    final File[] files = directory.listFiles();
+    if (files == null) return;
+    Arrays.sort(files);
+    for (File file : files) {
+      if (file.isDirectory()) {
+        collect(file, prefix + file.getName() + "/", paths);
+      }
+      else if (EXTENSIONS.contains(ImageLoader.getExtension(file.getName()).toLowerCase())) {
+        paths.add(prefix + file.getName());
+      }
+    }
+  }
+}
@@ -0,0 +1,487 @@
+/*
+ * Copyright 2000-2016 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bulenkov.iconloader;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.awt.*;
+import java.awt.color.ColorSpace;
+import java.awt.image.*;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
+import java.lang.ref.WeakReference;
+import java.net.URL;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded cache of decoded icon images keyed by URL, scale and filter.
+ * <p/>
+ * The cache is split into independently locked LRU segments, so concurrent lookups of
+ * different icons rarely contend. Each segment gets an equal share of the entry and byte budget.
+ * <p/>
+ * With {@link ValueType#OFF_HEAP} values the pixels live in direct memory and the byte budget bounds that memory.
+ */
+public class IconCache {
+  public enum ValueType {
+    /** Values are held until evicted */
+    STRONG,
+    /** Values may be collected when the heap runs low */
+    SOFT,
+    /** Values are collected as soon as nobody else uses them */
+    WEAK,
+    /**
+     * Pixels are copied to direct memory until evicted. A hit returns the image handed out last while it is
+     * still in use, and otherwise creates a new image from the pixels.
+     * Images other than {@link BufferedImage}s and {@link JBHiDPIScaledImage}s backed by one are held strongly.
+     */
+    OFF_HEAP
+  }
+
+  private static final int SEGMENT_COUNT = 16;
+
+  private final Segment[] mySegments;
+  private final ValueType myValueType;
+  private final OffHeapPixels myOffHeap;
+  private final long myMaxBytes;
+  private final AtomicLong myTotalBytes = new AtomicLong();
+
+  private final AtomicLong myHits = new AtomicLong();
+  private final AtomicLong myMisses = new AtomicLong();
+  private final AtomicLong myEvictions = new AtomicLong();
+
+  /**
+   * Each segment evicts its least recently used images once it holds more than its share of the entry or byte budget.
+   * An image larger than a segment's byte share, up to {@code maxBytes}, is still cached when the rest of the cache
+   * leaves room for it, and it then takes the whole segment.
+   *
+   * @param maxEntries maximum number of cached images
+   * @param maxBytes   maximum estimated size of cached pixels, in bytes
+   * @param valueType  how strongly cached images are referenced
+   */
+  public IconCache(int maxEntries, long maxBytes, @NotNull ValueType valueType) {
+    if (maxEntries <= 0 || maxBytes <= 0) {
+      throw new IllegalArgumentException("Cache bounds should be positive: " + maxEntries + ", " + maxBytes);
+    }
+    myValueType = valueType;
+    myMaxBytes = maxBytes;
+    myOffHeap = valueType == ValueType.OFF_HEAP ? new OffHeapPixels() : null;
+    mySegments = new Segment[SEGMENT_COUNT];
+    final int entriesPerSegment = Math.max(1, (maxEntries + SEGMENT_COUNT - 1) / SEGMENT_COUNT);
+    final long bytesPerSegment = Math.max(1, maxBytes / SEGMENT_COUNT);
+    for (int i = 0; i < SEGMENT_COUNT; i++) {
+      mySegments[i] = new Segment(entriesPerSegment, bytesPerSegment);
+    }
+  }
+
+  @NotNull
+  public ValueType getValueType() {
+    return myValueType;
+  }
+
+  @Nullable
+  public Image get(@NotNull URL url, boolean retina, @Nullable ImageFilter filter) {
+    return get(url, retina ? 2 : 1, filter);
+  }
+
+  @Nullable
+  public Image get(@NotNull URL url, float scale, @Nullable ImageFilter filter) {
+    final Key key = new Key(url, scale, filter);
+    final Image image = segmentFor(key).get(key);
+    if (image == null) {
+      myMisses.incrementAndGet();
+    }
+    else {
+      myHits.incrementAndGet();
+    }
+    return image;
+  }
+
+  /**
+   * Looks the image up without counting a hit or a miss.
+   */
+  @Nullable
+  Image peek(@NotNull Key key) {
+    return segmentFor(key).get(key);
+  }
+
+  public void put(@NotNull URL url, boolean retina, @Nullable ImageFilter filter, @NotNull Image image) {
+    put(url, retina ? 2 : 1, filter, image);
+  }
+
+  public void put(@NotNull URL url, float scale, @Nullable ImageFilter filter, @NotNull Image image) {
+    final Key key = new Key(url, scale, filter);
+    segmentFor(key).put(key, image);
+  }
+
+  public void clear() {
+    for (Segment segment : mySegments) {
+      segment.clear();
+    }
+  }
+
+  public int size() {
+    int size = 0;
+    for (Segment segment : mySegments) {
+      size += segment.size();
+    }
+    return size;
+  }
+
+  /**
+   * @return estimated size in bytes of the pixels held by the cache
+   */
+  public long getByteSize() {
+    return myTotalBytes.get();
+  }
+
+  /**
+   * @return bytes of direct memory holding pixels of cached images, 0 unless values are {@link ValueType#OFF_HEAP}
+   */
+  public long getOffHeapBytes() {
+    return myOffHeap == null ? 0 : myOffHeap.getUsedBytes();
+  }
+
+  /**
+   * @return bytes of direct memory allocated for pixels, including blocks free for reuse
+   */
+  public long getOffHeapReservedBytes() {
+    return myOffHeap == null ? 0 : myOffHeap.getReservedBytes();
+  }
+
+  public long getHitCount() {
+    return myHits.get();
+  }
+
+  public long getMissCount() {
+    return myMisses.get();
+  }
+
+  public long getEvictionCount() {
+    return myEvictions.get();
+  }
+
+  /**
+   * Estimates how many bytes the pixels of the image occupy, assuming 32 bits per pixel.
+   */
+  public static long sizeOf(@NotNull Image image) {
+    if (image instanceof JBHiDPIScaledImage) {
+      final Image delegate = ((JBHiDPIScaledImage)image).getDelegate();
+      if (delegate != null) {
+        image = delegate;
+      }
+    }
+    final int w = image.getWidth(null);
+    final int h = image.getHeight(null);
+    return w > 0 && h > 0 ? 4L * w * h : 0;
+  }
+
+  private Segment segmentFor(Key key) {
+    int h = key.hashCode();
+    h ^= (h >>> 20) ^ (h >>> 12);
+    h ^= (h >>> 7) ^ (h >>> 4);
+    return mySegments[h & (SEGMENT_COUNT - 1)];
+  }
+
+  /**
+   * Identifies an image by URL, scale and filter the same way the cache does.
+   */
+  static final class Key {
+    private final String myUrl;
+    private final float myScale;
+    private final ImageFilter myFilter;
+    private final int myHash;
+
+    Key(URL url, float scale, ImageFilter filter) {
+      // URL.equals() and URL.hashCode() may resolve host names, so compare external forms instead
+      myUrl = url.toExternalForm();
+      myScale = scale;
+      myFilter = filter;
+      myHash = 31 * (31 * myUrl.hashCode() + Float.floatToIntBits(scale)) + System.identityHashCode(filter);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) return true;
+      if (!(o instanceof Key)) return false;
+      final Key key = (Key)o;
+      return myScale == key.myScale && myFilter == key.myFilter && myUrl.equals(key.myUrl);
+    }
+
+    @Override
+    public int hashCode() {
+      return myHash;
+    }
+  }
+
+  private interface KeyedReference {
+    Key getKey();
+  }
+
+  private static final class SoftValue extends SoftReference<Image> implements KeyedReference {
+    private final Key myKey;
+
+    private SoftValue(Key key, Image image, ReferenceQueue<Image> queue) {
+      super(image, queue);
+      myKey = key;
+    }
+
+    public Key getKey() {
+      return myKey;
+    }
+  }
+
+  private static final class WeakValue extends WeakReference<Image> implements KeyedReference {
+    private final Key myKey;
+
+    private WeakValue(Key key, Image image, ReferenceQueue<Image> queue) {
+      super(image, queue);
+      myKey = key;
+    }
+
+    public Key getKey() {
+      return myKey;
+    }
+  }
+
+  /**
+   * Image whose pixels are stored off-heap, as premultiplied ARGB ints.
+   * <p/>
+   * The last image handed out is referenced weakly and returned again while something else still holds it,
+   * so repeated hits don't create a heap copy each.
+   */
+  private static final class OffHeapValue {
+    private static final ColorModel ARGB_PRE = new DirectColorModel(
+      ColorSpace.getInstance(ColorSpace.CS_sRGB), 32, 0x00ff0000, 0x0000ff00, 0x000000ff, 0xff000000, true, DataBuffer.TYPE_INT);
+
+    private final OffHeapPixels.Block myBlock;
+    private final int myPixelWidth;
+    private final int myPixelHeight;
+    // logical size and scale of a JBHiDPIScaledImage, scale 0 for a plain image
+    private final int myWidth;
+    private final int myHeight;
+    private final int myType;
+    private final float myScale;
+    // guarded by the segment
+    private WeakReference<Image> myImage;
+
+    private OffHeapValue(OffHeapPixels.Block block, int pixelWidth, int pixelHeight, int width, int height, int type, float scale,
+                         @NotNull Image image) {
+      myImage = new WeakReference<Image>(image);
+      myBlock = block;
+      myPixelWidth = pixelWidth;
+      myPixelHeight = pixelHeight;
+      myWidth = width;
+      myHeight = height;
+      myType = type;
+      myScale = scale;
+    }
+
+    /**
+     * @return the value, or null if the image's pixels can't be stored off-heap
+     */
+    @Nullable
+    private static OffHeapValue create(@NotNull OffHeapPixels store, @NotNull Image image) {
+      final Image pixels = image instanceof JBHiDPIScaledImage ? ((JBHiDPIScaledImage)image).getDelegate() : image;
+      if (!(pixels instanceof BufferedImage)) return null;
+
+      final BufferedImage buffered = (BufferedImage)pixels;
+      final int width = buffered.getWidth();
+      final int height = buffered.getHeight();
+      final OffHeapPixels.Block block = store.allocate(4 * width * height);
+
+      final int[] argb = new int[width * height];
+      if (buffered.getType() == BufferedImage.TYPE_INT_ARGB_PRE) {
+        buffered.getRaster().getDataElements(0, 0, width, height, argb);
+      }
+      else {
+        final BufferedImage premultiplied = createImage(argb, width, height);
+        final Graphics2D g = premultiplied.createGraphics();
+        g.setComposite(AlphaComposite.Src);
+        g.drawImage(buffered, 0, 0, null);
+        g.dispose();
+      }
+      block.write(argb);
+
+      if (image instanceof JBHiDPIScaledImage) {
+        final JBHiDPIScaledImage hidpi = (JBHiDPIScaledImage)image;
+        return new OffHeapValue(block, width, height, hidpi.getWidth(), hidpi.getHeight(), hidpi.getType(), hidpi.getScale(), image);
+      }
+      return new OffHeapValue(block, width, height, width, height, 0, 0, image);
+    }
+
+    @NotNull
+    private Image getImage() {
+      Image image = myImage.get();
+      if (image == null) {
+        final int[] argb = new int[myPixelWidth * myPixelHeight];
+        myBlock.read(argb);
+        final BufferedImage pixels = createImage(argb, myPixelWidth, myPixelHeight);
+        image = myScale == 0 ? pixels : new JBHiDPIScaledImage(pixels, myWidth, myHeight, myType, myScale);
+        myImage = new WeakReference<Image>(image);
+      }
+      return image;
+    }
+
+    @NotNull
+    private static BufferedImage createImage(@NotNull int[] argb, int width, int height) {
+      final WritableRaster raster = Raster.createPackedRaster(
+        new DataBufferInt(argb, argb.length), width, height, width,
+        new int[]{0x00ff0000, 0x0000ff00, 0x000000ff, 0xff000000}, null);
+      return new BufferedImage(ARGB_PRE, raster, true, null);
+    }
+  }
+
+  private final class Entry {
+    private final Object myValue;
+    private final long myBytes;
+
+    private Entry(Object value, long bytes) {
+      myValue = value;
+      myBytes = bytes;
+    }
+
+    @Nullable
+    private Image getImage() {
+      if (myValue instanceof Reference) {
+        return (Image)((Reference<?>)myValue).get();
+      }
+      if (myValue instanceof OffHeapValue) {
+        return ((OffHeapValue)myValue).getImage();
+      }
+      return (Image)myValue;
+    }
+
+    /**
+     * Called once the entry is no longer in the cache, its off-heap pixels can't be read after that.
+     */
+    private void release() {
+      if (myValue instanceof OffHeapValue) {
+        myOffHeap.free(((OffHeapValue)myValue).myBlock);
+      }
+    }
+  }
+
+  private final class Segment {
+    private final int myMaxEntries;
+    private final long myMaxBytes;
+    private final LinkedHashMap<Key, Entry> myMap = new LinkedHashMap<Key, Entry>(16, 0.75f, true);
+    private final ReferenceQueue<Image> myQueue = new ReferenceQueue<Image>();
+    private long myBytes;
+
+    private Segment(int maxEntries, long maxBytes) {
+      myMaxEntries = maxEntries;
+      myMaxBytes = maxBytes;
+    }
+
+    @Nullable
+    private synchronized Image get(Key key) {
+      expungeCollected();
+      final Entry entry = myMap.get(key);
+      if (entry == null) return null;
+      final Image image = entry.getImage();
+      if (image == null) {
+        remove(key);
+        myEvictions.incrementAndGet();
+      }
+      return image;
+    }
+
+    private synchronized void put(Key key, Image image) {
+      expungeCollected();
+      final long bytes = sizeOf(image);
+      if (bytes > myMaxBytes) {
+        // the segment is emptied for an image over its share, so only the other segments count
+        if (bytes > IconCache.this.myMaxBytes || myTotalBytes.get() - myBytes + bytes > IconCache.this.myMaxBytes) return;
+      }
+
+      final Entry old = myMap.put(key, new Entry(wrap(key, image), bytes));
+      if (old != null) {
+        addBytes(-old.myBytes);
+        old.release();
+      }
+      addBytes(bytes);
+
+      final Iterator<Map.Entry<Key, Entry>> it = myMap.entrySet().iterator();
+      while ((myMap.size() > myMaxEntries || myBytes > myMaxBytes) && it.hasNext()) {
+        final Map.Entry<Key, Entry> eldest = it.next();
+        if (eldest.getKey() == key) continue;
+        it.remove();
+        addBytes(-eldest.getValue().myBytes);
+        eldest.getValue().release();
+        myEvictions.incrementAndGet();
+      }
+    }
+
+    private synchronized void clear() {
+      for (Entry entry : myMap.values()) {
+        entry.release();
+      }
+      myMap.clear();
+      addBytes(-myBytes);
+      while (myQueue.poll() != null) ;
+    }
+
+    private synchronized int size() {
+      return myMap.size();
+    }
+
+    private void addBytes(long bytes) {
+      myBytes += bytes;
+      myTotalBytes.addAndGet(bytes);
+    }
+
+    private Object wrap(Key key, Image image) {
+      switch (myValueType) {
+        case SOFT:
+          return new SoftValue(key, image, myQueue);
+        case WEAK:
+          return new WeakValue(key, image, myQueue);
+        case OFF_HEAP:
+          final OffHeapValue value = OffHeapValue.create(myOffHeap, image);
+          return value != null ? value : image;
+        default:
+          return image;
+      }
+    }
+
+    private void expungeCollected() {
+      Reference<? extends Image> ref;
+      while ((ref = myQueue.poll()) != null) {
+        final Key key = ((KeyedReference)ref).getKey();
+        final Entry entry = myMap.get(key);
+        // the key might have been re-populated with a fresh value in the meantime
+        if (entry != null && entry.myValue == ref) {
+          remove(key);
+          myEvictions.incrementAndGet();
+        }
+      }
+    }
+
+    private void remove(Key key) {
+      final Entry entry = myMap.remove(key);
+      if (entry != null) {
+        addBytes(-entry.myBytes);
+        entry.release();
+      }
+    }
+  }
+}
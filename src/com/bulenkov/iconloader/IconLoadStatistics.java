@@ -0,0 +1,289 @@
+/*
+ * Copyright 2000-2016 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bulenkov.iconloader;
+
+import com.bulenkov.iconloader.util.ImageLoadListener;
+import com.bulenkov.iconloader.util.ImageLoader;
+import org.jetbrains.annotations.NotNull;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Collects icon loading metrics: time spent per loading phase, scaled variant hits and misses,
+ * {@link java.awt.MediaTracker} timeouts, icon cache usage and the slowest images.
+ * <p/>
+ * Nothing is collected until {@link #install()} is called. The installed instance is also registered
+ * as an MBean named {@value #OBJECT_NAME}.
+ */
+public class IconLoadStatistics implements ImageLoadListener, IconLoadStatisticsMBean {
+  public static final String OBJECT_NAME = "com.bulenkov.iconloader:type=IconLoadStatistics";
+
+  private static final int DEFAULT_SLOWEST_COUNT = 10;
+
+  private final int mySlowestCount;
+  private final AtomicLongArray myPhaseNanos = new AtomicLongArray(Phase.values().length);
+  private final AtomicLong myLoads = new AtomicLong();
+  private final AtomicLong myFailures = new AtomicLong();
+  private final AtomicLong myLoadNanos = new AtomicLong();
+  private final AtomicLong myVariantHits = new AtomicLong();
+  private final AtomicLong myVariantMisses = new AtomicLong();
+  private final AtomicLong myTrackerTimeouts = new AtomicLong();
+  private final AtomicLong myDecodedBytes = new AtomicLong();
+  // fastest of the slowest images at the head, guarded by itself
+  private final PriorityQueue<SlowImage> mySlowest = new PriorityQueue<SlowImage>();
+
+  public IconLoadStatistics() {
+    this(DEFAULT_SLOWEST_COUNT);
+  }
+
+  /**
+   * @param slowestCount how many of the slowest images to remember
+   */
+  public IconLoadStatistics(int slowestCount) {
+    mySlowestCount = slowestCount;
+  }
+
+  /**
+   * Starts collecting metrics and registers the MBean, replacing a previously installed instance.
+   */
+  @NotNull
+  public static synchronized IconLoadStatistics install() {
+    uninstall();
+    final IconLoadStatistics statistics = new IconLoadStatistics();
+    ImageLoader.addListener(statistics);
+    try {
+      ManagementFactory.getPlatformMBeanServer().registerMBean(statistics, new ObjectName(OBJECT_NAME));
+    }
+    catch (JMException ignore) {
+      // metrics are still available through the returned instance
+    }
+    ourInstalled = statistics;
+    return statistics;
+  }
+
+  /**
+   * Stops collecting metrics and unregisters the MBean.
+   */
+  public static synchronized void uninstall() {
+    final IconLoadStatistics statistics = ourInstalled;
+    if (statistics == null) return;
+    ourInstalled = null;
+    ImageLoader.removeListener(statistics);
+    try {
+      final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      final ObjectName name = new ObjectName(OBJECT_NAME);
+      if (server.isRegistered(name)) {
+        server.unregisterMBean(name);
+      }
+    }
+    catch (JMException ignore) {
+    }
+  }
+
+  private static IconLoadStatistics ourInstalled;
+
+  @Override
+  public void phaseFinished(@NotNull String file, @NotNull Phase phase, long nanos) {
+    myPhaseNanos.addAndGet(phase.ordinal(), nanos);
+  }
+
+  @Override
+  public void variantLookedUp(@NotNull String file, boolean found) {
+    (found ? myVariantHits : myVariantMisses).incrementAndGet();
+  }
+
+  @Override
+  public void trackerTimedOut() {
+    myTrackerTimeouts.incrementAndGet();
+  }
+
+  @Override
+  public void imageLoaded(@NotNull String file, boolean loaded, long nanos, long bytes) {
+    if (!loaded) {
+      myFailures.incrementAndGet();
+      return;
+    }
+    myLoads.incrementAndGet();
+    myLoadNanos.addAndGet(nanos);
+    myDecodedBytes.addAndGet(bytes);
+
+    if (mySlowestCount <= 0) return;
+    synchronized (mySlowest) {
+      if (mySlowest.size() < mySlowestCount) {
+        mySlowest.add(new SlowImage(file, nanos));
+      }
+      else if (mySlowest.peek().myNanos < nanos) {
+        mySlowest.poll();
+        mySlowest.add(new SlowImage(file, nanos));
+      }
+    }
+  }
+
+  public long getPhaseTimeMillis(@NotNull Phase phase) {
+    return TimeUnit.NANOSECONDS.toMillis(myPhaseNanos.get(phase.ordinal()));
+  }
+
+  @Override
+  public long getLoadCount() {
+    return myLoads.get();
+  }
+
+  @Override
+  public long getFailureCount() {
+    return myFailures.get();
+  }
+
+  @Override
+  public long getLoadTimeMillis() {
+    return TimeUnit.NANOSECONDS.toMillis(myLoadNanos.get());
+  }
+
+  @Override
+  public long getResolveTimeMillis() {
+    return getPhaseTimeMillis(Phase.RESOLVE);
+  }
+
+  @Override
+  public long getReadTimeMillis() {
+    return getPhaseTimeMillis(Phase.READ);
+  }
+
+  @Override
+  public long getDecodeTimeMillis() {
+    return getPhaseTimeMillis(Phase.DECODE);
+  }
+
+  @Override
+  public long getFilterTimeMillis() {
+    return getPhaseTimeMillis(Phase.FILTER);
+  }
+
+  @Override
+  public long getScaleTimeMillis() {
+    return getPhaseTimeMillis(Phase.SCALE);
+  }
+
+  @Override
+  public long getVariantHits() {
+    return myVariantHits.get();
+  }
+
+  @Override
+  public long getVariantMisses() {
+    return myVariantMisses.get();
+  }
+
+  @Override
+  public long getTrackerTimeouts() {
+    return myTrackerTimeouts.get();
+  }
+
+  /**
+   * @return estimated size of all pixels decoded so far, whether still referenced or not
+   */
+  @Override
+  public long getDecodedBytes() {
+    return myDecodedBytes.get();
+  }
+
+  @Override
+  public long getCacheHits() {
+    final IconCache cache = IconLoader.getIconCache();
+    return cache == null ? 0 : cache.getHitCount();
+  }
+
+  @Override
+  public long getCacheMisses() {
+    final IconCache cache = IconLoader.getIconCache();
+    return cache == null ? 0 : cache.getMissCount();
+  }
+
+  /**
+   * @return estimated size of the decoded pixels currently held by the icon cache
+   */
+  @Override
+  public long getCacheBytes() {
+    final IconCache cache = IconLoader.getIconCache();
+    return cache == null ? 0 : cache.getByteSize();
+  }
+
+  /**
+   * @return direct memory holding the pixels of the icon cache, if it keeps them off-heap
+   */
+  @Override
+  public long getCacheOffHeapBytes() {
+    final IconCache cache = IconLoader.getIconCache();
+    return cache == null ? 0 : cache.getOffHeapBytes();
+  }
+
+  @Override
+  public String[] getSlowestImages() {
+    final List<SlowImage> images;
+    synchronized (mySlowest) {
+      images = new ArrayList<SlowImage>(mySlowest);
+    }
+    Collections.sort(images, Collections.reverseOrder());
+    final String[] result = new String[images.size()];
+    for (int i = 0; i < result.length; i++) {
+      final SlowImage image = images.get(i);
+      result[i] = String.format("%.1f %s", image.myNanos / 1e6, image.myFile);
+    }
+    return result;
+  }
+
+  @Override
+  public void reset() {
+    for (int i = 0; i < myPhaseNanos.length(); i++) {
+      myPhaseNanos.set(i, 0);
+    }
+    myLoads.set(0);
+    myFailures.set(0);
+    myLoadNanos.set(0);
+    myVariantHits.set(0);
+    myVariantMisses.set(0);
+    myTrackerTimeouts.set(0);
+    myDecodedBytes.set(0);
+    synchronized (mySlowest) {
+      mySlowest.clear();
+    }
+  }
+
+  private static final class SlowImage implements Comparable<SlowImage> {
+    private final String myFile;
+    private final long myNanos;
+
+    private SlowImage(String file, long nanos) {
+      myFile = file;
+      myNanos = nanos;
+    }
+
+    @Override
+    public int compareTo(@NotNull SlowImage o) {
+      return myNanos < o.myNanos ? -1 : myNanos == o.myNanos ? 0 : 1;
+    }
+  }
+}
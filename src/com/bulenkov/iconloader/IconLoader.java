@@ -18,7 +18,7 @@ package com.bulenkov.iconloader;
 
 import com.bulenkov.iconloader.util.ImageLoader;
 import com.bulenkov.iconloader.util.ImageUtil;
-import com.bulenkov.iconloader.util.JBImageIcon;
+import com.bulenkov.iconloader.util.ImmutableImageIcon;
 import com.bulenkov.iconloader.util.UIUtil;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
@@ -26,16 +26,203 @@ import org.jetbrains.annotations.Nullable;
 import javax.swing.*;
 import java.awt.*;
 import java.awt.image.BufferedImage;
+import java.awt.image.ImageFilter;
+import java.beans.PropertyChangeEvent;
+import java.beans.PropertyChangeListener;
+import java.io.IOException;
 import java.net.URL;
+import java.util.*;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * @author Konstantin Bulenkov
  */
 @SuppressWarnings("UnusedDeclaration")
 public final class IconLoader {
+  private static final int DEFAULT_CACHE_ENTRIES = 2048;
+  private static final long DEFAULT_CACHE_BYTES = 32L * 1024 * 1024;
+
+  private static volatile IconCache ourCache =
+    new IconCache(DEFAULT_CACHE_ENTRIES, DEFAULT_CACHE_BYTES, IconCache.ValueType.SOFT);
+
+  private static volatile boolean ourLazyLoading;
+  private static volatile IconAtlas ourAtlas;
+  private static final List<IconBundle> ourBundles = new CopyOnWriteArrayList<IconBundle>();
+  private static volatile Executor ourAsyncExecutor;
+  // images being loaded right now, so that concurrent requests for the same image wait for one load
+  private static final ConcurrentMap<IconCache.Key, PendingLoad> ourPendingLoads =
+    new ConcurrentHashMap<IconCache.Key, PendingLoad>();
+
+  // source icon -> (gray filter, scale) -> disabled icon
+  private static final Map<Icon, Map<DisabledIconKey, Icon>> ourDisabledIcons = new WeakHashMap<Icon, Map<DisabledIconKey, Icon>>();
+  private static final AtomicBoolean ourLafListenerInstalled = new AtomicBoolean();
 
   private IconLoader() { }
 
+  public static boolean isLazyLoading() {
+    return ourLazyLoading;
+  }
+
+  /**
+   * When enabled, {@link #getIcon(URL)} reads only the image header and returns a {@link LazyIcon}
+   * which decodes the pixels on the first paint.
+   */
+  public static void setLazyLoading(boolean lazyLoading) {
+    ourLazyLoading = lazyLoading;
+  }
+
+  /**
+   * @return the cache of decoded images consulted by {@link #getIcon(URL)}, null if caching is disabled
+   */
+  @Nullable
+  public static IconCache getIconCache() {
+    return ourCache;
+  }
+
+  /**
+   * Replaces the cache of decoded images. Pass null to decode icons on every request.
+   */
+  public static void setIconCache(@Nullable IconCache cache) {
+    ourCache = cache;
+  }
+
+  @Nullable
+  public static IconAtlas getIconAtlas() {
+    return ourAtlas;
+  }
+
+  /**
+   * Enables atlas mode: small icons returned by {@link #getIcon(URL)} are packed into
+   * the shared pages of the given atlas. Pass null to return standalone icons again.
+   * <p/>
+   * Images packed into the atlas are not kept in the icon cache, the atlas holds their only copy.
+   * Lazily and asynchronously loaded icons are packed when their image is decoded.
+   * Once the atlas has no free page left, icons are returned standalone and cached as usual.
+   *
+   * @see IconAtlas#IconAtlas(int, int, int)
+   */
+  public static void setIconAtlas(@Nullable IconAtlas atlas) {
+    ourAtlas = atlas;
+  }
+
+  /**
+   * Registers a bundle of pre-decoded icons. Bundles are consulted in the order they were added,
+   * before the icon resources themselves are read.
+   */
+  public static void addBundle(@NotNull IconBundle bundle) {
+    ourBundles.add(bundle);
+  }
+
+  public static void removeBundle(@NotNull IconBundle bundle) {
+    ourBundles.remove(bundle);
+  }
+
+  /**
+   * @return the executor decoding icons returned by {@link #getIconAsync(URL)}
+   */
+  @NotNull
+  public static Executor getAsyncExecutor() {
+    Executor executor = ourAsyncExecutor;
+    if (executor == null) {
+      synchronized (IconLoader.class) {
+        executor = ourAsyncExecutor;
+        if (executor == null) {
+          ourAsyncExecutor = executor = createAsyncExecutor();
+        }
+      }
+    }
+    return executor;
+  }
+
+  /**
+   * Replaces the executor decoding icons returned by {@link #getIconAsync(URL)}.
+   * Pass null to go back to the default pool of daemon threads.
+   */
+  public static void setAsyncExecutor(@Nullable Executor executor) {
+    ourAsyncExecutor = executor;
+  }
+
+  private static Executor createAsyncExecutor() {
+    final int threads = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+    final AtomicInteger counter = new AtomicInteger();
+    final ThreadPoolExecutor executor = new ThreadPoolExecutor(
+      threads, threads, 10, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+      @Override
+      public Thread newThread(@NotNull Runnable r) {
+        final Thread thread = new Thread(r, "IconLoader async " + counter.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    executor.allowCoreThreadTimeOut(true);
+    return executor;
+  }
+
+  /**
+   * Same as {@link #getIconAsync(URL, Icon)} with a transparent placeholder.
+   */
+  @Nullable
+  public static Icon getIconAsync(URL url) {
+    return getIconAsync(url, null);
+  }
+
+  /**
+   * Same as {@link #getIconAsync(URL, Icon, Dimension)} with the size taken from a bundle or the placeholder.
+   */
+  @Nullable
+  public static Icon getIconAsync(URL url, @Nullable Icon placeholder) {
+    return getIconAsync(url, placeholder, null);
+  }
+
+  /**
+   * Returns an icon without decoding the image on the calling thread. The image is decoded on the
+   * {@linkplain #getAsyncExecutor() async executor}; until then the icon paints the placeholder,
+   * and afterwards the components it was painted on are repainted.
+   * <p/>
+   * Icons which are already cached are returned right away. Until the image is decoded, the icon has
+   * the given size, the size of the icon in a {@linkplain #addBundle(IconBundle) bundle}, the size
+   * of the placeholder, or the size read from the PNG, GIF or SVG header, in that order; 0x0 if none is known.
+   * If the decoded image turns out to have a different size, the components are revalidated as well.
+   *
+   * @param placeholder icon painted while the image is being loaded, null to paint nothing
+   * @param size        size of the icon if known up front, null otherwise
+   */
+  @Nullable
+  public static Icon getIconAsync(URL url, @Nullable Icon placeholder, @Nullable Dimension size) {
+    if (url == null) {
+      return null;
+    }
+    final float scale = UIUtil.getScaleFactor();
+    final IconAtlas atlas = ourAtlas;
+    if (atlas != null) {
+      final Icon icon = atlas.get(getAtlasKey(url, scale));
+      if (icon != null) return icon;
+    }
+    final IconCache cache = ourCache;
+    final Image image = cache == null ? null : cache.get(url, scale, null);
+    if (image != null) {
+      final ImmutableImageIcon icon = checkIcon(image, url);
+      return icon == null ? null : new ScaledIcon(url, scale, icon);
+    }
+
+    Dimension initialSize = size != null ? size : getBundledSize(url, scale);
+    if (initialSize == null && placeholder != null) {
+      initialSize = new Dimension(placeholder.getIconWidth(), placeholder.getIconHeight());
+    }
+    if (initialSize == null) {
+      // only the first bytes are read, which is cheap enough to spare the layout a jump
+      initialSize = ImageLoader.loadSizeFromUrl(url, scale);
+    }
+    final AsyncIcon icon = initialSize == null
+                           ? new AsyncIcon(url, scale, 0, 0, placeholder)
+                           : new AsyncIcon(url, scale, initialSize.width, initialSize.height, placeholder);
+    icon.load(getAsyncExecutor());
+    return icon;
+  }
+
   /**
    * Might return null if icon was not found.
    */
@@ -44,23 +231,328 @@ public final class IconLoader {
     if (url == null) {
       return null;
     }
-    Image image = ImageLoader.loadFromUrl(url);
-    ImageIcon ii = checkIcon(image, url);
+    final float scale = UIUtil.getScaleFactor();
+    final IconAtlas atlas = ourAtlas;
+    final String atlasKey = atlas == null ? null : getAtlasKey(url, scale);
+    if (atlas != null) {
+      final Icon icon = atlas.get(atlasKey);
+      if (icon != null) return icon;
+    }
+
+    Image image = null;
+    if (ourLazyLoading) {
+      final IconCache cache = ourCache;
+      image = cache == null ? null : cache.get(url, scale, null);
+      if (image == null) {
+        Dimension size = getBundledSize(url, scale);
+        if (size == null) {
+          size = ImageLoader.loadSizeFromUrl(url, scale);
+        }
+        if (size != null && size.width > 0 && size.height > 0) {
+          return new LazyIcon(url, scale, size.width, size.height);
+        }
+      }
+    }
+
+    if (image == null) {
+      image = loadImage(url, scale, null, atlas == null, null);
+    }
+    ImmutableImageIcon ii = checkIcon(image, url);
+    if (ii != null && atlas != null) {
+      final Icon icon = pack(atlas, atlasKey, url, scale, image);
+      if (icon != null) return icon;
+    }
 
     if(ii == null) {
       return null;
     }
 
-    return new IconWrapper(ii);
+    return new ScaledIcon(url, scale, ii);
+  }
+
+  @Nullable
+  static ImmutableImageIcon loadIcon(@NotNull URL url, float scale) {
+    return checkIcon(loadImage(url, scale, null, true, null), url);
+  }
+
+  /**
+   * Loads the icon for a {@link LazyIcon} or an {@link AsyncIcon}, packed into the atlas if there is one.
+   */
+  @Nullable
+  static Icon loadPackedIcon(@NotNull URL url, float scale) {
+    final IconAtlas atlas = ourAtlas;
+    if (atlas == null) {
+      return loadIcon(url, scale);
+    }
+    final String atlasKey = getAtlasKey(url, scale);
+    Icon icon = atlas.get(atlasKey);
+    if (icon != null) return icon;
+
+    final Image image = loadImage(url, scale, null, false, null);
+    final ImmutableImageIcon ii = checkIcon(image, url);
+    if (ii == null) return null;
+    icon = pack(atlas, atlasKey, url, scale, image);
+    return icon != null ? icon : ii;
+  }
+
+  /**
+   * Packs the image into the atlas. An image the atlas doesn't take is put into the icon cache instead.
+   *
+   * @return the packed icon, or null if the image wasn't packed
+   */
+  @Nullable
+  private static Icon pack(@NotNull IconAtlas atlas, @NotNull String atlasKey, @NotNull URL url, float scale, @NotNull Image image) {
+    final Icon icon = atlas.put(atlasKey, image);
+    if (icon == null) {
+      final IconCache cache = ourCache;
+      if (cache != null) {
+        cache.put(url, scale, null, image);
+      }
+    }
+    return icon;
+  }
+
+  @NotNull
+  private static String getAtlasKey(@NotNull URL url, float scale) {
+    final String key = url.toExternalForm();
+    return scale == 1 ? key : key + "@" + ImageLoader.formatScale(scale) + "x";
+  }
+
+  /**
+   * Decodes icons on the given executor and puts them into the icon cache, so that
+   * subsequent {@link #getIcon(URL)} calls don't have to decode them.
+   * An icon that fails to load doesn't abort loading of the others.
+   * Without an icon cache there is nowhere to keep the icons, so nothing is loaded.
+   * Cancelling the returned future interrupts the icons being decoded for the preload alone;
+   * an icon requested by another caller as well is still loaded for that caller.
+   *
+   * @return future completed once every icon is processed; its value maps the icons that couldn't be loaded to the failure cause.
+   *         The map compares the given URL instances by identity, as URL equality may resolve host names.
+   */
+  @NotNull
+  public static Future<Map<URL, Throwable>> preload(@NotNull Collection<URL> urls, @NotNull Executor executor) {
+    final float scale = UIUtil.getScaleFactor();
+    final Map<URL, Throwable> failures = new IdentityHashMap<URL, Throwable>();
+    // threads running the preload tasks, interrupted when the preload is cancelled
+    final Set<Thread> loaders = new HashSet<Thread>();
+    final FutureTask<Map<URL, Throwable>> result = new FutureTask<Map<URL, Throwable>>(new Callable<Map<URL, Throwable>>() {
+      @Override
+      public Map<URL, Throwable> call() {
+        synchronized (failures) {
+          return Collections.unmodifiableMap(new IdentityHashMap<URL, Throwable>(failures));
+        }
+      }
+    }) {
+      @Override
+      public boolean cancel(boolean mayInterruptIfRunning) {
+        final boolean cancelled = super.cancel(mayInterruptIfRunning);
+        if (cancelled) {
+          synchronized (loaders) {
+            for (Thread loader : loaders) {
+              loader.interrupt();
+            }
+          }
+        }
+        return cancelled;
+      }
+    };
+    if (ourCache == null) {
+      result.run();
+      return result;
+    }
+
+    final AtomicInteger remaining = new AtomicInteger(urls.size() + 1);
+    for (final URL url : urls) {
+      final Runnable task = new Runnable() {
+        @Override
+        public void run() {
+          final Thread thread = Thread.currentThread();
+          synchronized (loaders) {
+            loaders.add(thread);
+          }
+          try {
+            if (!result.isCancelled()) {
+              final Image image = loadImage(url, scale, null, true, result);
+              if (image == null || image.getHeight(null) < 1) {
+                addFailure(failures, url, new IOException("Cannot load icon " + url));
+              }
+            }
+          }
+          catch (Throwable e) {
+            addFailure(failures, url, e);
+          }
+          finally {
+            synchronized (loaders) {
+              loaders.remove(thread);
+            }
+            // the interrupt of a cancelled preload is not meant for the next task of the executor
+            if (result.isCancelled()) Thread.interrupted();
+            if (remaining.decrementAndGet() == 0) result.run();
+          }
+        }
+      };
+      try {
+        executor.execute(task);
+      }
+      catch (RejectedExecutionException e) {
+        addFailure(failures, url, e);
+        remaining.decrementAndGet();
+      }
+    }
+    if (remaining.decrementAndGet() == 0) result.run();
+
+    return result;
+  }
+
+  private static void addFailure(Map<URL, Throwable> failures, URL url, Throwable cause) {
+    synchronized (failures) {
+      failures.put(url, cause);
+    }
+  }
+
+  /**
+   * Loads the image on the calling thread, or waits for the load of the same image already in progress.
+   * Interrupts don't stop the wait, the interrupt status is restored once the image is there.
+   * A caller gives up only when its {@code interest} is cancelled; the load of an image stops
+   * once its owner gave up, and the callers still waiting for it start over.
+   *
+   * @param cacheResult false if the caller stores the image elsewhere and a newly decoded one shouldn't be put into the icon cache
+   * @param interest    the task the image is loaded for, null if the caller never gives up
+   */
+  @Nullable
+  private static Image loadImage(@NotNull URL url, float scale, @Nullable ImageFilter filter, boolean cacheResult,
+                                 @Nullable Future<?> interest) {
+    final IconCache cache = ourCache;
+    Image image = cache == null ? null : cache.get(url, scale, filter);
+    if (image != null) {
+      return image;
+    }
+
+    final IconCache.Key key = new IconCache.Key(url, scale, filter);
+    boolean interrupted = false;
+    try {
+      while (true) {
+        PendingLoad load = ourPendingLoads.get(key);
+        boolean owner = false;
+        if (load == null) {
+          final PendingLoad created = new PendingLoad(key, url, scale, filter, cache, cacheResult, interest);
+          load = ourPendingLoads.putIfAbsent(key, created);
+          if (load == null) {
+            load = created;
+            owner = true;
+          }
+        }
+
+        load.join();
+        try {
+          if (owner) {
+            // an interrupt that came before the load is not a reason to fail it
+            if (Thread.interrupted()) interrupted = true;
+            load.run();
+          }
+          while (true) {
+            try {
+              return load.get();
+            }
+            catch (InterruptedException e) {
+              interrupted = true;
+              if (interest != null && interest.isCancelled()) return null;
+            }
+          }
+        }
+        catch (ExecutionException e) {
+          final Throwable cause = e.getCause();
+          // the owner of the load gave up before the image was there, start over
+          if (cause instanceof CancellationException) {
+            if (interest != null && interest.isCancelled()) return null;
+            continue;
+          }
+          if (cause instanceof RuntimeException) throw (RuntimeException)cause;
+          if (cause instanceof Error) throw (Error)cause;
+          throw new IllegalStateException(cause);
+        }
+        finally {
+          load.leave();
+          if (load.isDone()) {
+            // done() may not have run yet, don't let a later request of this thread get the same result
+            ourPendingLoads.remove(key, load);
+          }
+        }
+      }
+    }
+    finally {
+      if (interrupted) Thread.currentThread().interrupt();
+    }
+  }
+
+  @Nullable
+  private static Image doLoadImage(@NotNull URL url, float scale, @Nullable ImageFilter filter, @Nullable IconCache cache) {
+    Image image = loadFromBundles(url, scale, filter);
+    if (image == null) {
+      image = ImageLoader.loadFromUrl(url, scale, filter);
+    }
+    if (image != null && cache != null) {
+      cache.put(url, scale, filter, image);
+    }
+    return image;
+  }
+
+  @Nullable
+  private static Image loadFromBundles(@NotNull URL url, float scale, @Nullable ImageFilter filter) {
+    for (IconBundle bundle : ourBundles) {
+      final String path = bundle.findPath(url);
+      if (path == null) continue;
+
+      Image image = null;
+      float imageScale = 1;
+      for (float variant : ImageLoader.getVariantScales(scale)) {
+        image = bundle.getImage(path, variant);
+        if (image != null) {
+          imageScale = variant;
+          break;
+        }
+      }
+      if (image == null) {
+        image = bundle.getImage(path, 1);
+      }
+      if (image == null) continue;
+
+      if (filter != null) {
+        image = ImageUtil.filter(image, filter);
+      }
+      return ImageUtil.createHiDPIImage(image, imageScale, scale);
+    }
+    return null;
   }
 
+  /**
+   * @return logical size of the icon as {@link #loadFromBundles} would load it, null if no bundle has the icon
+   */
   @Nullable
-  private static ImageIcon checkIcon(final Image image, @NotNull URL url) {
-    if (image == null || image.getHeight(ImageLoader.ourComponent) < 1) { // image wasn't loaded or broken
+  private static Dimension getBundledSize(@NotNull URL url, float scale) {
+    for (IconBundle bundle : ourBundles) {
+      final String path = bundle.findPath(url);
+      if (path == null) continue;
+
+      for (float variant : ImageLoader.getVariantScales(scale)) {
+        final Dimension size = bundle.getImageSize(path, variant);
+        if (size != null) {
+          return new Dimension(Math.max(1, Math.round(size.width / variant)), Math.max(1, Math.round(size.height / variant)));
+        }
+      }
+      final Dimension size = bundle.getImageSize(path, 1);
+      if (size != null) return size;
+    }
+    return null;
+  }
+
+  @Nullable
+  private static ImmutableImageIcon checkIcon(final Image image, @NotNull URL url) {
+    if (image == null || image.getHeight(null) < 1) { // image wasn't loaded or broken
       return null;
     }
 
-    final ImageIcon icon = new JBImageIcon(image);
+    final ImmutableImageIcon icon = new ImmutableImageIcon(image);
     if (!isGoodSize(icon)) {
       return null;
     }
@@ -74,6 +566,8 @@ public final class IconLoader {
 
   /**
    * Gets (creates if necessary) disabled icon based on the passed one.
+   * Disabled icons are cached per source icon, gray filter and scale until the source icon
+   * is garbage collected or the look and feel changes.
    *
    * @return <code>ImageIcon</code> constructed from disabled image of passed icon, null if source icon is wrong
    */
@@ -81,27 +575,146 @@ public final class IconLoader {
   public static Icon getDisabledIcon(Icon icon) {
     if (icon == null) return null;
 
-    Icon disabledIcon;
-      if (!isGoodSize(icon)) {
-        return null;
+    if (!isGoodSize(icon)) {
+      return null;
+    }
+
+    installLafListener();
+    final DisabledIconKey key = new DisabledIconKey(UIUtil.getGrayFilter(), UIUtil.getScaleFactor());
+    synchronized (ourDisabledIcons) {
+      final Map<DisabledIconKey, Icon> variants = ourDisabledIcons.get(icon);
+      final Icon cached = variants == null ? null : variants.get(key);
+      if (cached != null) {
+        return cached;
+      }
+    }
+
+    final Icon disabledIcon = createDisabledIcon(icon, key.myFilter, key.myScale);
+
+    synchronized (ourDisabledIcons) {
+      Map<DisabledIconKey, Icon> variants = ourDisabledIcons.get(icon);
+      if (variants == null) {
+        variants = new HashMap<DisabledIconKey, Icon>(4);
+        ourDisabledIcons.put(icon, variants);
+      }
+      final Icon cached = variants.get(key);
+      if (cached != null) {
+        return cached;
       }
-      final int scale = UIUtil.isRetina() ? 2 : 1;
+      variants.put(key, disabledIcon);
+    }
+    return disabledIcon;
+  }
+
+  @NotNull
+  private static Icon createDisabledIcon(@NotNull Icon icon, @NotNull ImageFilter filter, float scale) {
       @SuppressWarnings("UndesirableClassUsage")
-      BufferedImage image = new BufferedImage(scale*icon.getIconWidth(), scale*icon.getIconHeight(), BufferedImage.TYPE_INT_ARGB);
+      BufferedImage image = new BufferedImage(Math.round(scale*icon.getIconWidth()), Math.round(scale*icon.getIconHeight()), BufferedImage.TYPE_INT_ARGB);
       final Graphics2D graphics = image.createGraphics();
 
       graphics.setColor(UIUtil.TRANSPARENT_COLOR);
       graphics.fillRect(0, 0, icon.getIconWidth(), icon.getIconHeight());
       graphics.scale(scale, scale);
-      icon.paintIcon(ImageLoader.ourComponent, graphics, 0, 0);
+      icon.paintIcon(ImageLoader.getComponent(), graphics, 0, 0);
 
       graphics.dispose();
 
-      Image img = ImageUtil.filter(image, UIUtil.getGrayFilter());
-      if (UIUtil.isRetina()) img = RetinaImage.createFrom(img, ImageLoader.ourComponent);
+      Image img = ImageUtil.filter(image, filter);
+      if (scale != 1) img = RetinaImage.createFrom(img, scale, null);
+
+      return new IconWrapper(new ImmutableImageIcon(img));
+  }
+
+  private static void installLafListener() {
+    if (ourLafListenerInstalled.compareAndSet(false, true)) {
+      UIManager.addPropertyChangeListener(new PropertyChangeListener() {
+        @Override
+        public void propertyChange(PropertyChangeEvent evt) {
+          if ("lookAndFeel".equals(evt.getPropertyName())) {
+            synchronized (ourDisabledIcons) {
+              ourDisabledIcons.clear();
+            }
+          }
+        }
+      });
+    }
+  }
+
+  private static final class DisabledIconKey {
+    private final ImageFilter myFilter;
+    private final float myScale;
 
-      disabledIcon = new JBImageIcon(img);
-    return new IconWrapper(disabledIcon);
+    private DisabledIconKey(@NotNull ImageFilter filter, float scale) {
+      myFilter = filter;
+      myScale = scale;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) return true;
+      if (!(o instanceof DisabledIconKey)) return false;
+      final DisabledIconKey key = (DisabledIconKey)o;
+      return myFilter == key.myFilter && myScale == key.myScale;
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * System.identityHashCode(myFilter) + Float.floatToIntBits(myScale);
+    }
+  }
+
+  /**
+   * Load of an image shared by all threads requesting it at the same time. It runs on the thread
+   * which requested the image first, the others wait for it.
+   */
+  private static final class PendingLoad extends FutureTask<Image> {
+    private final IconCache.Key myKey;
+    private final AtomicInteger myWaiters = new AtomicInteger();
+
+    private PendingLoad(@NotNull final IconCache.Key key, @NotNull final URL url, final float scale, @Nullable final ImageFilter filter,
+                        @Nullable final IconCache cache, final boolean cacheResult, @Nullable final Future<?> interest) {
+      super(new Callable<Image>() {
+        @Override
+        public Image call() {
+          // a load finished between the cache lookup of the caller and this one
+          final Image cached = cache == null ? null : cache.peek(key);
+          if (cached != null) return cached;
+
+          final Image image = doLoadImage(url, scale, filter, cacheResult ? cache : null);
+          if (image == null && interest != null && interest.isCancelled()) {
+            // the decoding was most likely interrupted, the image may still be there for the other waiters
+            throw new CancellationException();
+          }
+          return image;
+        }
+      });
+      myKey = key;
+    }
+
+    private void join() {
+      myWaiters.incrementAndGet();
+    }
+
+    private void leave() {
+      myWaiters.decrementAndGet();
+    }
+
+    int getWaiterCount() {
+      return myWaiters.get();
+    }
+
+    @Override
+    protected void done() {
+      ourPendingLoads.remove(myKey, this);
+    }
+  }
+
+  /**
+   * @return number of threads waiting for the image to load, for tests
+   */
+  static int getWaiterCount(@NotNull URL url, float scale, @Nullable ImageFilter filter) {
+    final PendingLoad load = ourPendingLoads.get(new IconCache.Key(url, scale, filter));
+    return load == null ? 0 : load.getWaiterCount();
   }
 
 }
@@ -16,32 +16,292 @@
 
 package com.bulenkov.iconloader;
 
+import com.bulenkov.iconloader.util.ImageUtil;
+import com.bulenkov.iconloader.util.UIUtil;
+import org.jetbrains.annotations.Nullable;
+
 import java.awt.*;
-import java.awt.image.BufferedImage;
+import java.awt.image.*;
 
 /**
+ * Image in user coordinate space backed by a high-resolution delegate.
+ * <p/>
+ * Only the delegate holds pixels. The image is still a {@link BufferedImage} of the logical size for
+ * existing callers, but with a delegate its own raster is a single pixel, and the raster, sample model,
+ * tile, pixel and graphics accessors work on a buffer of the logical size allocated on first use.
+ * Without a delegate the image is an ordinary buffer drawn into at the doubled resolution.
+ *
  * @author Konstantin Bulenkov
  */
 public class JBHiDPIScaledImage extends BufferedImage {
+  private static final int MAX_SCALED_IMAGES = 4;
+  private static final ScaledImage[] NO_SCALED_IMAGES = new ScaledImage[0];
+
   private final Image myImage;
+  private final int myWidth;
+  private final int myHeight;
+  private final int myType;
+  private final float myScale;
+  private volatile BufferedImage myBuffer;
+  // delegate resampled for other device scales, oldest first
+  private volatile ScaledImage[] myScaledImages = NO_SCALED_IMAGES;
 
   public JBHiDPIScaledImage(Image image, int width, int height, int type) {
-    super(width, height, type);
+    this(image, width, height, type, 2);
+  }
+
+  /**
+   * @param scale ratio of the delegate size to the given size
+   */
+  public JBHiDPIScaledImage(Image image, int width, int height, int type, float scale) {
+    super(image == null ? width : 1, image == null ? height : 1, type);
     myImage = image;
+    myWidth = width;
+    myHeight = height;
+    myType = type;
+    myScale = scale;
   }
 
   public Image getDelegate() {
     return myImage;
   }
 
+  /**
+   * Returns the pixels to paint at the given device scale, so they can be copied 1:1 instead of
+   * being scaled on every paint. Images resampled for a scale other than the delegate's are cached,
+   * for a few scales at most. Only {@linkplain UIUtil#isKnownScale(double) known screen scales} are
+   * resampled for: an arbitrary zoom would resample on every paint and churn the cache.
+   *
+   * @return the delegate or a copy of it resampled to the device size, null if there is no delegate
+   *         or the scale is not worth resampling for
+   */
+  @Nullable
+  public Image getScaledDelegate(double scale) {
+    final Image image = myImage;
+    if (image == null || scale <= 0) return null;
+
+    final int width = Math.max(1, (int)Math.round(myWidth * scale));
+    final int height = Math.max(1, (int)Math.round(myHeight * scale));
+    if (image.getWidth(null) == width && image.getHeight(null) == height) {
+      return image;
+    }
+    if (!UIUtil.isKnownScale(scale)) return null;
+    for (ScaledImage scaled : myScaledImages) {
+      if (scaled.myScale == scale) return scaled.myImage;
+    }
+
+    final Image resampled = ImageUtil.resample(image, width, height);
+    synchronized (this) {
+      final ScaledImage[] old = myScaledImages;
+      for (ScaledImage scaled : old) {
+        if (scaled.myScale == scale) return scaled.myImage;
+      }
+      final int kept = Math.min(old.length, MAX_SCALED_IMAGES - 1);
+      final ScaledImage[] images = new ScaledImage[kept + 1];
+      System.arraycopy(old, old.length - kept, images, 0, kept);
+      images[kept] = new ScaledImage(scale, resampled);
+      myScaledImages = images;
+    }
+    return resampled;
+  }
+
+  /**
+   * @return the raster this image is drawn into when used as a drawing target: the image itself without a delegate,
+   *         otherwise a buffer of the logical size allocated on first call
+   */
+  public BufferedImage getBuffer() {
+    if (myImage == null) return this;
+    BufferedImage buffer = myBuffer;
+    if (buffer == null) {
+      synchronized (this) {
+        buffer = myBuffer;
+        if (buffer == null) {
+          //noinspection UndesirableClassUsage
+          myBuffer = buffer = new BufferedImage(myWidth, myHeight, myType);
+        }
+      }
+    }
+    return buffer;
+  }
+
+  @Override
+  public int getWidth() {
+    return myWidth;
+  }
+
+  @Override
+  public int getHeight() {
+    return myHeight;
+  }
+
+  @Override
+  public int getType() {
+    return myType;
+  }
+
+  public float getScale() {
+    return myScale;
+  }
+
+  @Override
+  public int getWidth(ImageObserver observer) {
+    return myWidth;
+  }
+
+  @Override
+  public int getHeight(ImageObserver observer) {
+    return myHeight;
+  }
+
+  @Override
+  public ImageProducer getSource() {
+    return myImage != null ? myImage.getSource() : super.getSource();
+  }
+
+  @Override
+  public Object getProperty(String name, ImageObserver observer) {
+    return myImage != null ? myImage.getProperty(name, observer) : super.getProperty(name, observer);
+  }
+
+  @Override
+  public Graphics getGraphics() {
+    return createGraphics();
+  }
+
   @Override
   public Graphics2D createGraphics() {
-    final Graphics2D g = super.createGraphics();
+    if (myImage == null) {
+      return new HiDPIScaledGraphics(super.createGraphics(), this);
+    }
+    return getBuffer().createGraphics();
+  }
+
+  @Override
+  public WritableRaster getRaster() {
+    return myImage == null ? super.getRaster() : getBuffer().getRaster();
+  }
+
+  @Override
+  public WritableRaster getAlphaRaster() {
+    return myImage == null ? super.getAlphaRaster() : getBuffer().getAlphaRaster();
+  }
+
+  @Override
+  public Raster getData() {
+    return myImage == null ? super.getData() : getBuffer().getData();
+  }
+
+  @Override
+  public Raster getData(Rectangle rect) {
+    return myImage == null ? super.getData(rect) : getBuffer().getData(rect);
+  }
 
+  @Override
+  public WritableRaster copyData(WritableRaster outRaster) {
+    return myImage == null ? super.copyData(outRaster) : getBuffer().copyData(outRaster);
+  }
+
+  @Override
+  public void setData(Raster r) {
     if (myImage == null) {
-      return new HiDPIScaledGraphics(g, this);
+      super.setData(r);
     }
+    else {
+      getBuffer().setData(r);
+    }
+  }
+
+  @Override
+  public SampleModel getSampleModel() {
+    return myImage == null ? super.getSampleModel() : getBuffer().getSampleModel();
+  }
+
+  @Override
+  public int getTileWidth() {
+    return myImage == null ? super.getTileWidth() : getBuffer().getTileWidth();
+  }
+
+  @Override
+  public int getTileHeight() {
+    return myImage == null ? super.getTileHeight() : getBuffer().getTileHeight();
+  }
+
+  @Override
+  public int getTileGridXOffset() {
+    return myImage == null ? super.getTileGridXOffset() : getBuffer().getTileGridXOffset();
+  }
+
+  @Override
+  public int getTileGridYOffset() {
+    return myImage == null ? super.getTileGridYOffset() : getBuffer().getTileGridYOffset();
+  }
 
-    return g;
+  @Override
+  public Raster getTile(int tileX, int tileY) {
+    return myImage == null ? super.getTile(tileX, tileY) : getBuffer().getTile(tileX, tileY);
+  }
+
+  @Override
+  public WritableRaster getWritableTile(int tileX, int tileY) {
+    return myImage == null ? super.getWritableTile(tileX, tileY) : getBuffer().getWritableTile(tileX, tileY);
+  }
+
+  @Override
+  public int getRGB(int x, int y) {
+    return myImage == null ? super.getRGB(x, y) : getBuffer().getRGB(x, y);
+  }
+
+  @Override
+  public int[] getRGB(int startX, int startY, int w, int h, int[] rgbArray, int offset, int scansize) {
+    return myImage == null ? super.getRGB(startX, startY, w, h, rgbArray, offset, scansize)
+                           : getBuffer().getRGB(startX, startY, w, h, rgbArray, offset, scansize);
+  }
+
+  @Override
+  public void setRGB(int x, int y, int rgb) {
+    if (myImage == null) {
+      super.setRGB(x, y, rgb);
+    }
+    else {
+      getBuffer().setRGB(x, y, rgb);
+    }
+  }
+
+  @Override
+  public void setRGB(int startX, int startY, int w, int h, int[] rgbArray, int offset, int scansize) {
+    if (myImage == null) {
+      super.setRGB(startX, startY, w, h, rgbArray, offset, scansize);
+    }
+    else {
+      getBuffer().setRGB(startX, startY, w, h, rgbArray, offset, scansize);
+    }
+  }
+
+  @Override
+  public BufferedImage getSubimage(int x, int y, int w, int h) {
+    return myImage == null ? super.getSubimage(x, y, w, h) : getBuffer().getSubimage(x, y, w, h);
+  }
+
+  @Override
+  public void flush() {
+    if (myImage != null) {
+      myImage.flush();
+    }
+    final BufferedImage buffer = myBuffer;
+    if (buffer != null) {
+      buffer.flush();
+    }
+    myScaledImages = NO_SCALED_IMAGES;
+    super.flush();
+  }
+
+  private static final class ScaledImage {
+    private final double myScale;
+    private final Image myImage;
+
+    private ScaledImage(double scale, Image image) {
+      myScale = scale;
+      myImage = image;
+    }
   }
 }
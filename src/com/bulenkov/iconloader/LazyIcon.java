@@ -0,0 +1,91 @@
+/*
+ * Copyright 2000-2016 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bulenkov.iconloader;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import javax.swing.*;
+import java.awt.*;
+import java.net.URL;
+
+/**
+ * Icon which knows its size up front and decodes the image on the first paint.
+ *
+ * @see IconLoader#setLazyLoading(boolean)
+ */
+public class LazyIcon implements Icon {
+  private static final Icon BROKEN = new ImageIcon();
+
+  private final URL myUrl;
+  private final float myScale;
+  private final int myWidth;
+  private final int myHeight;
+  private volatile Icon myDelegate;
+
+  LazyIcon(@NotNull URL url, float scale, int width, int height) {
+    myUrl = url;
+    myScale = scale;
+    myWidth = width;
+    myHeight = height;
+  }
+
+  @NotNull
+  public URL getUrl() {
+    return myUrl;
+  }
+
+  public boolean isLoaded() {
+    return myDelegate != null;
+  }
+
+  @Nullable
+  Icon getDelegate() {
+    Icon delegate = myDelegate;
+    if (delegate == null) {
+      synchronized (this) {
+        delegate = myDelegate;
+        if (delegate == null) {
+          delegate = IconLoader.loadPackedIcon(myUrl, myScale);
+          if (delegate == null) {
+            delegate = BROKEN;
+          }
+          myDelegate = delegate;
+        }
+      }
+    }
+    return delegate == BROKEN ? null : delegate;
+  }
+
+  @Override
+  public void paintIcon(Component c, Graphics g, int x, int y) {
+    final Icon delegate = getDelegate();
+    if (delegate != null) {
+      delegate.paintIcon(c, g, x, y);
+    }
+  }
+
+  @Override
+  public int getIconWidth() {
+    return myWidth;
+  }
+
+  @Override
+  public int getIconHeight() {
+    return myHeight;
+  }
+}
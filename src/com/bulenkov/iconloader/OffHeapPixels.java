@@ -0,0 +1,149 @@
+/*
+ * Copyright 2000-2016 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bulenkov.iconloader;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Pixels kept outside the Java heap, so a large icon cache neither grows the old generation
+ * nor has to be traced by the collector.
+ * <p/>
+ * Direct buffers are allocated in slabs of {@value #SLAB_SIZE} bytes, and every slab is carved
+ * into equal blocks of one power-of-two size, so a block may be up to twice the size asked for.
+ * A freed block goes to the free list of its size and is reused by the next allocation of that size;
+ * slabs are never returned. Blocks of more than half a slab get a direct buffer of their exact size
+ * instead, which is dropped when the block is freed.
+ */
+final class OffHeapPixels {
+  private static final int SLAB_SIZE = 256 * 1024;
+  private static final int MIN_BLOCK_SHIFT = 10;
+  private static final int MAX_BLOCK_SHIFT = 17;
+
+  private final SizeClass[] myClasses = new SizeClass[MAX_BLOCK_SHIFT - MIN_BLOCK_SHIFT + 1];
+  private long myReservedBytes;
+  private long myUsedBytes;
+
+  /**
+   * @return a block of at least the given size
+   */
+  @NotNull
+  synchronized Block allocate(int bytes) {
+    if (bytes > 1 << MAX_BLOCK_SHIFT) {
+      final Block block = new Block(ByteBuffer.allocateDirect(bytes).order(ByteOrder.nativeOrder()), 0, bytes);
+      myReservedBytes += bytes;
+      myUsedBytes += bytes;
+      return block;
+    }
+
+    int shift = MIN_BLOCK_SHIFT;
+    while (1 << shift < bytes) {
+      shift++;
+    }
+    SizeClass sizeClass = myClasses[shift - MIN_BLOCK_SHIFT];
+    if (sizeClass == null) {
+      myClasses[shift - MIN_BLOCK_SHIFT] = sizeClass = new SizeClass(1 << shift);
+    }
+    final Block block = sizeClass.allocate();
+    myUsedBytes += block.mySize;
+    return block;
+  }
+
+  synchronized void free(@NotNull Block block) {
+    if (block.mySize > 1 << MAX_BLOCK_SHIFT) {
+      // the buffer is released by the collector once the block is no longer referenced
+      myReservedBytes -= block.mySize;
+    }
+    else {
+      myClasses[Integer.numberOfTrailingZeros(block.mySize) - MIN_BLOCK_SHIFT].myFree.add(block);
+    }
+    myUsedBytes -= block.mySize;
+  }
+
+  /**
+   * @return bytes of the blocks in use
+   */
+  synchronized long getUsedBytes() {
+    return myUsedBytes;
+  }
+
+  /**
+   * @return bytes of direct memory held by the slabs, used or not, and by the blocks of their own
+   */
+  synchronized long getReservedBytes() {
+    return myReservedBytes;
+  }
+
+  private final class SizeClass {
+    private final int myBlockSize;
+    private final List<Block> myFree = new ArrayList<Block>();
+    private ByteBuffer mySlab;
+    private int myNextOffset = SLAB_SIZE;
+
+    private SizeClass(int blockSize) {
+      myBlockSize = blockSize;
+    }
+
+    @NotNull
+    private Block allocate() {
+      if (!myFree.isEmpty()) {
+        return myFree.remove(myFree.size() - 1);
+      }
+      if (myNextOffset + myBlockSize > SLAB_SIZE) {
+        mySlab = ByteBuffer.allocateDirect(SLAB_SIZE).order(ByteOrder.nativeOrder());
+        myNextOffset = 0;
+        myReservedBytes += SLAB_SIZE;
+      }
+      final Block block = new Block(mySlab, myNextOffset, myBlockSize);
+      myNextOffset += myBlockSize;
+      return block;
+    }
+  }
+
+  static final class Block {
+    private final ByteBuffer mySlab;
+    private final int myOffset;
+    private final int mySize;
+
+    private Block(ByteBuffer slab, int offset, int size) {
+      mySlab = slab;
+      myOffset = offset;
+      mySize = size;
+    }
+
+    void write(@NotNull int[] pixels) {
+      slice().asIntBuffer().put(pixels);
+    }
+
+    void read(@NotNull int[] pixels) {
+      slice().asIntBuffer().get(pixels);
+    }
+
+    @NotNull
+    private ByteBuffer slice() {
+      // a duplicate has its own position, but not the byte order
+      final ByteBuffer buffer = mySlab.duplicate().order(ByteOrder.nativeOrder());
+      buffer.position(myOffset);
+      buffer.limit(myOffset + mySize);
+      return buffer;
+    }
+  }
+}
@@ -44,4 +44,14 @@ public class RetinaImage {
     return hidpi;
   }
 
+  /**
+   * Same as {@link #createFrom(Image, ImageObserver)} for a raw image provided in the given scale, e.g. 1.5.
+   */
+  public static Image createFrom(/* @NotNull */ Image image, float scale, ImageObserver observer) {
+    int w = image.getWidth(observer);
+    int h = image.getHeight(observer);
+
+    return new JBHiDPIScaledImage(image, Math.round(w / scale), Math.round(h / scale), BufferedImage.TYPE_INT_ARGB, scale);
+  }
+
 }
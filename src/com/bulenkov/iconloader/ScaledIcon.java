@@ -0,0 +1,217 @@
+/*
+ * Copyright 2000-2016 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bulenkov.iconloader;
+
+import com.bulenkov.iconloader.util.UIUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import javax.swing.*;
+import java.awt.*;
+import java.net.URL;
+import java.util.*;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Icon loaded for one scale, which loads the variant for another scale when it is painted
+ * on a screen with that scale, e.g. after its window has moved to a monitor with a different DPI.
+ * <p/>
+ * The variant is loaded on the {@linkplain IconLoader#getAsyncExecutor() async executor}, not on the
+ * painting thread. Until it is ready the icon paints its own image, which the graphics scales, and then
+ * repaints the components it was painted on.
+ */
+final class ScaledIcon implements Icon {
+  private static final int MAX_VARIANTS = 4;
+  private static final Variant[] NO_VARIANTS = new Variant[0];
+
+  private final URL myUrl;
+  private final float myScale;
+  private final Icon myIcon;
+  // icons for other scales, oldest first
+  private volatile Variant[] myVariants = NO_VARIANTS;
+
+  ScaledIcon(@NotNull URL url, float scale, @NotNull Icon icon) {
+    myUrl = url;
+    myScale = scale;
+    myIcon = icon;
+  }
+
+  /**
+   * @return the icon for the scale, loaded on the calling thread if it isn't loaded yet
+   */
+  @NotNull
+  Icon getIcon(float scale) {
+    if (scale == myScale) return myIcon;
+    final Variant variant = findVariant(scale);
+    if (variant != null && variant.myIcon != null) return variant.myIcon;
+    return loaded(scale, load(scale));
+  }
+
+  @Nullable
+  private Variant findVariant(float scale) {
+    for (Variant variant : myVariants) {
+      if (variant.myScale == scale) return variant;
+    }
+    return null;
+  }
+
+  @NotNull
+  private Icon load(float scale) {
+    final Icon icon = IconLoader.loadIcon(myUrl, scale);
+    if (icon == null || icon.getIconWidth() != myIcon.getIconWidth() || icon.getIconHeight() != myIcon.getIconHeight()) {
+      // keep the layout stable, the graphics will scale the pixels instead
+      return myIcon;
+    }
+    return icon;
+  }
+
+  /**
+   * Starts loading the variant for the scale unless it is already being loaded.
+   *
+   * @param component component to repaint once the variant is loaded
+   */
+  private void loadLater(final float scale, @Nullable Component component) {
+    synchronized (this) {
+      final Variant variant = findVariant(scale);
+      if (variant != null) {
+        if (variant.myComponents != null && component != null) {
+          variant.myComponents.put(component, Boolean.TRUE);
+        }
+        return;
+      }
+      final Variant pending = new Variant(scale, null);
+      if (component != null) {
+        pending.myComponents.put(component, Boolean.TRUE);
+      }
+      add(pending);
+    }
+
+    try {
+      IconLoader.getAsyncExecutor().execute(new Runnable() {
+        @Override
+        public void run() {
+          Icon icon = myIcon;
+          try {
+            icon = load(scale);
+          }
+          finally {
+            loaded(scale, icon);
+          }
+        }
+      });
+    }
+    catch (RejectedExecutionException e) {
+      loaded(scale, myIcon);
+    }
+  }
+
+  /**
+   * Stores the icon loaded for the scale and repaints the components waiting for it.
+   *
+   * @return the icon stored for the scale, which is the one loaded first if several threads loaded it
+   */
+  @NotNull
+  private Icon loaded(float scale, @NotNull Icon icon) {
+    final List<Component> components;
+    synchronized (this) {
+      final Variant existing = findVariant(scale);
+      if (existing != null && existing.myIcon != null) return existing.myIcon;
+
+      final Variant variant = new Variant(scale, icon);
+      if (existing == null) {
+        components = Collections.emptyList();
+        add(variant);
+      }
+      else {
+        components = new ArrayList<Component>(existing.myComponents.keySet());
+        final Variant[] variants = myVariants.clone();
+        for (int i = 0; i < variants.length; i++) {
+          if (variants[i] == existing) {
+            variants[i] = variant;
+          }
+        }
+        myVariants = variants;
+      }
+    }
+
+    if (!components.isEmpty()) {
+      SwingUtilities.invokeLater(new Runnable() {
+        @Override
+        public void run() {
+          for (Component component : components) {
+            if (component != null) {
+              component.repaint();
+            }
+          }
+        }
+      });
+    }
+    return icon;
+  }
+
+  private void add(@NotNull Variant variant) {
+    final Variant[] old = myVariants;
+    final int kept = Math.min(old.length, MAX_VARIANTS - 1);
+    final Variant[] variants = new Variant[kept + 1];
+    System.arraycopy(old, old.length - kept, variants, 0, kept);
+    variants[kept] = variant;
+    myVariants = variants;
+  }
+
+  @Override
+  public void paintIcon(Component c, Graphics g, int x, int y) {
+    final GraphicsConfiguration configuration = g instanceof Graphics2D ? ((Graphics2D)g).getDeviceConfiguration()
+                                                : c != null ? c.getGraphicsConfiguration() : null;
+    final float scale = UIUtil.getScaleFactor(configuration);
+    Icon icon = myIcon;
+    if (scale != myScale) {
+      final Variant variant = findVariant(scale);
+      if (variant != null && variant.myIcon != null) {
+        icon = variant.myIcon;
+      }
+      else {
+        loadLater(scale, c);
+      }
+    }
+    icon.paintIcon(c, g, x, y);
+  }
+
+  @Override
+  public int getIconWidth() {
+    return myIcon.getIconWidth();
+  }
+
+  @Override
+  public int getIconHeight() {
+    return myIcon.getIconHeight();
+  }
+
+  private static final class Variant {
+    private final float myScale;
+    // null while the icon is being loaded
+    private final Icon myIcon;
+    // components painted while the icon was being loaded, guarded by the ScaledIcon
+    private final WeakHashMap<Component, Boolean> myComponents;
+
+    private Variant(float scale, @Nullable Icon icon) {
+      myScale = scale;
+      myIcon = icon;
+      myComponents = icon == null ? new WeakHashMap<Component, Boolean>() : null;
+    }
+  }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright 2000-2016 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bulenkov.iconloader.util;
+
+import org.jetbrains.annotations.NotNull;
+
+import javax.imageio.stream.ImageInputStreamImpl;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Image input stream reading straight from a heap, direct or memory-mapped buffer,
+ * so ImageIO readers don't need a cached copy of the data.
+ */
+class ByteBufferImageInputStream extends ImageInputStreamImpl {
+  private final ByteBuffer myBuffer;
+  private final int myStart;
+
+  ByteBufferImageInputStream(@NotNull ByteBuffer data) {
+    myBuffer = data.duplicate();
+    myStart = myBuffer.position();
+  }
+
+  @Override
+  public int read() throws IOException {
+    checkClosed();
+    bitOffset = 0;
+    if (!myBuffer.hasRemaining()) return -1;
+    streamPos++;
+    return myBuffer.get() & 0xff;
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    checkClosed();
+    bitOffset = 0;
+    if (len == 0) return 0;
+    final int n = Math.min(len, myBuffer.remaining());
+    if (n == 0) return -1;
+    myBuffer.get(b, off, n);
+    streamPos += n;
+    return n;
+  }
+
+  @Override
+  public long length() {
+    return myBuffer.limit() - myStart;
+  }
+
+  @Override
+  public void seek(long pos) throws IOException {
+    super.seek(pos);
+    myBuffer.position((int)Math.min(myStart + pos, myBuffer.limit()));
+  }
+}
@@ -0,0 +1,229 @@
+/*
+ * Copyright 2000-2016 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bulenkov.iconloader.util;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.awt.color.ColorSpace;
+import java.awt.image.*;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * Persistent cache of decoded images, so icons don't have to be decoded again on the next start.
+ * <p/>
+ * Each entry is a file holding the premultiplied ARGB pixels as raw ints. An entry is read back with
+ * a plain channel read into a heap buffer rather than memory-mapped: the pixels are copied into the
+ * raster anyway, icon-sized files are too small for a mapping to pay off, and on Windows a live
+ * mapping would keep {@link #put} from replacing the file. An entry is only used if the length and CRC32 of the encoded source
+ * still match the ones recorded when the entry was written.
+ *
+ * @see ImageLoader#setDiskCache(DiskImageCache)
+ */
+public class DiskImageCache {
+  private static final int MAGIC = 0x49434e43; // "ICNC"
+  private static final int VERSION = 1;
+  private static final String SUFFIX = ".argb";
+
+  private static final ColorModel ARGB_PRE = new DirectColorModel(
+    ColorSpace.getInstance(ColorSpace.CS_sRGB), 32, 0x00ff0000, 0x0000ff00, 0x000000ff, 0xff000000, true, DataBuffer.TYPE_INT);
+
+  private final File myDirectory;
+
+  public DiskImageCache(@NotNull File directory) {
+    myDirectory = directory;
+  }
+
+  @NotNull
+  public File getDirectory() {
+    return myDirectory;
+  }
+
+  /**
+   * @param key    identifies the image, e.g. the URL it was loaded from
+   * @param source the encoded bytes the image was decoded from
+   * @return the cached image, or null if there is none or the source has changed
+   */
+  @Nullable
+  public BufferedImage get(@NotNull String key, @NotNull ByteBuffer source) {
+    final File file = getFile(key);
+    if (!file.isFile()) return null;
+
+    try {
+      final ByteBuffer data;
+      final FileInputStream stream = new FileInputStream(file);
+      try {
+        final FileChannel channel = stream.getChannel();
+        final long size = channel.size();
+        if (size > Integer.MAX_VALUE) return null;
+        data = ByteBuffer.allocate((int)size);
+        while (data.hasRemaining()) {
+          if (channel.read(data) < 0) break;
+        }
+        data.flip();
+      }
+      finally {
+        stream.close();
+      }
+
+      if (data.getInt() != MAGIC || data.getInt() != VERSION) return null;
+      final byte[] storedKey = new byte[data.getInt()];
+      data.get(storedKey);
+      if (!key.equals(new String(storedKey, "UTF-8"))) return null;
+      if (data.getInt() != source.remaining() || data.getInt() != checksum(source)) return null;
+
+      final int width = data.getInt();
+      final int height = data.getInt();
+      final int[] pixels = new int[width * height];
+      final IntBuffer intBuffer = data.asIntBuffer();
+      intBuffer.get(pixels);
+
+      final WritableRaster raster = Raster.createPackedRaster(
+        new DataBufferInt(pixels, pixels.length), width, height, width,
+        new int[]{0x00ff0000, 0x0000ff00, 0x000000ff, 0xff000000}, null);
+      return new BufferedImage(ARGB_PRE, raster, true, null);
+    }
+    catch (IOException e) {
+      return null;
+    }
+    catch (RuntimeException e) {
+      // truncated or otherwise corrupted entry
+      //noinspection ResultOfMethodCallIgnored
+      file.delete();
+      return null;
+    }
+  }
+
+  /**
+   * Stores the image decoded from the given source. Failures to write are ignored.
+   */
+  public void put(@NotNull String key, @NotNull ByteBuffer source, @NotNull BufferedImage image) {
+    final BufferedImage premultiplied = ImageIODecoder.toPremultiplied(image);
+    final int width = premultiplied.getWidth();
+    final int height = premultiplied.getHeight();
+    final int[] pixels = new int[width * height];
+    premultiplied.getRaster().getDataElements(0, 0, width, height, pixels);
+
+    File temp = null;
+    try {
+      final byte[] keyBytes = key.getBytes("UTF-8");
+      final ByteBuffer data = ByteBuffer.allocate(4 * 7 + keyBytes.length + 4 * pixels.length);
+      data.putInt(MAGIC).putInt(VERSION).putInt(keyBytes.length).put(keyBytes);
+      data.putInt(source.remaining()).putInt(checksum(source));
+      data.putInt(width).putInt(height);
+      data.asIntBuffer().put(pixels);
+      data.rewind();
+
+      if (!myDirectory.isDirectory() && !myDirectory.mkdirs()) return;
+      temp = File.createTempFile("icon", ".tmp", myDirectory);
+      final FileOutputStream stream = new FileOutputStream(temp);
+      try {
+        final FileChannel channel = stream.getChannel();
+        while (data.hasRemaining()) {
+          channel.write(data);
+        }
+      }
+      finally {
+        stream.close();
+      }
+
+      final File file = getFile(key);
+      if (!temp.renameTo(file)) {
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+        if (temp.renameTo(file)) {
+          temp = null;
+        }
+      }
+      else {
+        temp = null;
+      }
+    }
+    catch (IOException ignore) {
+    }
+    finally {
+      if (temp != null) {
+        //noinspection ResultOfMethodCallIgnored
+        temp.delete();
+      }
+    }
+  }
+
+  /**
+   * Removes all entries.
+   */
+  public void clear() {
+    final File[] files = myDirectory.listFiles();
+    if (files == null) return;
+    for (File file : files) {
+      if (file.getName().endsWith(SUFFIX)) {
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+      }
+    }
+  }
+
+  /**
+   * @return key for the image produced by applying the filter to the image stored under the given key,
+   *         null if the filter's result can't be identified across runs
+   */
+  @Nullable
+  public static String getFilteredKey(@NotNull String key, @NotNull ImageFilter filter) {
+    if (filter instanceof JBGrayFilter) {
+      final JBGrayFilter grayFilter = (JBGrayFilter)filter;
+      return key + "#gray:" + grayFilter.isBrighter() + ":" + grayFilter.getPercent();
+    }
+    return null;
+  }
+
+  @NotNull
+  private File getFile(@NotNull String key) {
+    final CRC32 crc = new CRC32();
+    try {
+      crc.update(key.getBytes("UTF-8"));
+    }
+    catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+    final String name = String.format("%08x%08x", key.hashCode(), (int)crc.getValue());
+    return new File(myDirectory, name + SUFFIX);
+  }
+
+  private static int checksum(@NotNull ByteBuffer data) {
+    final CRC32 crc = new CRC32();
+    if (data.hasArray()) {
+      crc.update(data.array(), data.arrayOffset() + data.position(), data.remaining());
+    }
+    else {
+      final ByteBuffer buffer = data.duplicate();
+      final byte[] chunk = new byte[8192];
+      while (buffer.hasRemaining()) {
+        final int n = Math.min(chunk.length, buffer.remaining());
+        buffer.get(chunk, 0, n);
+        crc.update(chunk, 0, n);
+      }
+    }
+    return (int)crc.getValue();
+  }
+}
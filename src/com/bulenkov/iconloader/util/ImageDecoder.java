@@ -0,0 +1,38 @@
+/*
+ * Copyright 2000-2016 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bulenkov.iconloader.util;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.awt.*;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Turns encoded image bytes into an {@link Image}.
+ *
+ * @see ImageLoader#setDecoder(ImageDecoder)
+ */
+public interface ImageDecoder {
+  /**
+   * @param data encoded image bytes between the buffer's position and limit
+   * @return the decoded image or null if the format is not supported by this decoder
+   */
+  @Nullable
+  Image decode(@NotNull ByteBuffer data) throws IOException;
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright 2000-2016 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bulenkov.iconloader.util;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import javax.imageio.ImageIO;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Decodes images synchronously on the calling thread with ImageIO.
+ * The reader consumes the buffer directly, without an intermediate copy.
+ * <p/>
+ * The result is always a {@link BufferedImage#TYPE_INT_ARGB_PRE} image, which Java2D
+ * can keep in an accelerated surface and composite without per-paint format conversion.
+ */
+public class ImageIODecoder implements ImageDecoder {
+  @Nullable
+  @Override
+  public Image decode(@NotNull ByteBuffer data) throws IOException {
+    final BufferedImage image;
+    try {
+      image = ImageIO.read(new ByteBufferImageInputStream(data));
+    }
+    catch (RuntimeException e) {
+      // some ImageIO plugins report broken data with unchecked exceptions
+      throw new IOException("Cannot decode image: " + e);
+    }
+    return image == null ? null : toPremultiplied(image);
+  }
+
+  @NotNull
+  static BufferedImage toPremultiplied(@NotNull BufferedImage image) {
+    if (image.getType() == BufferedImage.TYPE_INT_ARGB_PRE) {
+      return image;
+    }
+    @SuppressWarnings("UndesirableClassUsage")
+    final BufferedImage result = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_ARGB_PRE);
+    final Graphics2D g = result.createGraphics();
+    g.setComposite(AlphaComposite.Src);
+    g.drawImage(image, 0, 0, null);
+    g.dispose();
+    return result;
+  }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright 2000-2016 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bulenkov.iconloader.util;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Receives timings and outcomes of loading images from URLs. Called on the loading thread,
+ * so implementations should be fast and thread-safe.
+ *
+ * @see ImageLoader#addListener(ImageLoadListener)
+ * @see com.bulenkov.iconloader.IconLoadStatistics
+ */
+public interface ImageLoadListener {
+  enum Phase {
+    /** Finding out whether a scaled variant like {@code icon@2x.png} exists */
+    RESOLVE,
+    /** Reading the encoded bytes */
+    READ,
+    /** Decoding the bytes, or taking the pixels from the disk cache */
+    DECODE,
+    /** Applying an image filter, e.g. graying out a disabled icon */
+    FILTER,
+    /** Wrapping or resampling the image for the device scale */
+    SCALE
+  }
+
+  /**
+   * @param file  the resource the phase worked on
+   * @param nanos time the phase took
+   */
+  void phaseFinished(@NotNull String file, @NotNull Phase phase, long nanos);
+
+  /**
+   * A scaled variant like {@code icon@2x.png} was looked for.
+   */
+  void variantLookedUp(@NotNull String file, boolean found);
+
+  /**
+   * {@link java.awt.MediaTracker} gave up waiting for an image decoded by the AWT toolkit.
+   */
+  void trackerTimedOut();
+
+  /**
+   * @param loaded false if the image couldn't be loaded
+   * @param nanos  total time it took to load the image
+   * @param bytes  estimated size of the decoded pixels
+   */
+  void imageLoaded(@NotNull String file, boolean loaded, long nanos, long bytes);
+}
@@ -16,19 +16,27 @@
 
 package com.bulenkov.iconloader.util;
 
+import com.bulenkov.iconloader.IconCache;
+import com.bulenkov.iconloader.JBHiDPIScaledImage;
 import com.bulenkov.iconloader.RetinaImage;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.awt.*;
+import java.awt.image.BufferedImage;
 import java.awt.image.ImageFilter;
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.Serializable;
-import java.net.HttpURLConnection;
-import java.net.URL;
-import java.net.URLConnection;
+import java.awt.image.RGBImageFilter;
+import java.io.*;
+import java.lang.ref.SoftReference;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.jar.JarEntry;
 
 /**
  * @author Konstantin Bulenkov
@@ -49,101 +57,578 @@ public class ImageLoader implements Serializable {
       return stream;
     }
 
-  public static final Component ourComponent = new Component() {
-  };
+  /**
+   * Reads the whole resource into a buffer without intermediate copies. Large local files are
+   * memory-mapped, smaller ones and jar entries are read into a buffer of the exact size.
+   *
+   * @return the resource bytes, or null for a remote resource when {@code original} is false
+   */
+  @Nullable
+  public static ByteBuffer urlBytes(String path, boolean original) throws IOException {
+    final URL url = new URL(path);
+    if ("file".equals(url.getProtocol())) {
+      final File file = toFile(url);
+      if (file != null) {
+        return readFile(file);
+      }
+    }
 
-  private static boolean waitForImage(Image image) {
-    if (image == null) return false;
-    if (image.getWidth(null) > 0) return true;
-    MediaTracker mediatracker = new MediaTracker(ourComponent);
-    mediatracker.addImage(image, 1);
-    try {
-      mediatracker.waitForID(1, 5000);
+    final URLConnection connection = url.openConnection();
+    if (connection instanceof HttpURLConnection) {
+      if (!original) return null;
+      connection.addRequestProperty("User-Agent", "IntelliJ");
+    }
+    long size = -1;
+    if (connection instanceof JarURLConnection) {
+      final JarEntry entry = ((JarURLConnection)connection).getJarEntry();
+      if (entry != null) {
+        size = entry.getSize();
+      }
     }
-    catch (InterruptedException ex) {
-      ex.printStackTrace();
+    else {
+      size = connection.getContentLength();
     }
-    return !mediatracker.isErrorID(1);
+    return readFully(connection.getInputStream(), size);
+  }
+
+  /**
+   * Replaces the former public {@code ourComponent} field, whose eager initialization initialized AWT
+   * as soon as this class was loaded.
+   *
+   * @return component to pass where AWT requires one, e.g. to a {@link MediaTracker}.
+   *         It is created on first use, so loading images alone doesn't initialize AWT.
+   */
+  @NotNull
+  public static Component getComponent() {
+    return ComponentHolder.ourComponent;
+  }
+
+  private static final class ComponentHolder {
+    private static final Component ourComponent = new Component() {
+    };
+  }
+
+  // mapping a file costs more than reading it below this size
+  private static final int MAP_THRESHOLD = 64 * 1024;
+
+  private static final ImageDecoder FALLBACK_DECODER = new ToolkitImageDecoder();
+  private static final ImageDecoder RASTER_DECODER = new ImageIODecoder();
+
+  // scales of the image variants looked up next to the 1x image, ascending
+  private static final float[] VARIANT_SCALES = {1.5f, 2, 3};
+  private static final float[] NO_VARIANTS = new float[0];
+
+  private static final ConcurrentMap<String, SoftReference<SvgImage>> ourSvgImages =
+    new ConcurrentHashMap<String, SoftReference<SvgImage>>();
+
+  private static final ImageLoadListener[] NO_LISTENERS = new ImageLoadListener[0];
+  private static volatile ImageLoadListener[] ourListeners = NO_LISTENERS;
+
+  private static volatile ImageDecoder ourDecoder = new ImageIODecoder();
+  private static volatile DiskImageCache ourDiskCache;
+
+  @NotNull
+  public static ImageDecoder getDecoder() {
+    return ourDecoder;
+  }
+
+  /**
+   * Sets the strategy used to decode image bytes. Images the decoder cannot handle
+   * are still decoded with {@link Toolkit} as a fallback.
+   */
+  public static void setDecoder(@NotNull ImageDecoder decoder) {
+    ourDecoder = decoder;
+  }
+
+  @Nullable
+  public static DiskImageCache getDiskCache() {
+    return ourDiskCache;
+  }
+
+  /**
+   * Sets the persistent cache of decoded images consulted before decoding an image loaded
+   * from a URL, or disables it when null. There is no disk cache by default.
+   */
+  public static void setDiskCache(@Nullable DiskImageCache diskCache) {
+    ourDiskCache = diskCache;
   }
 
   @Nullable
   public static Image loadFromUrl(@NotNull URL url) {
-    return loadFromUrl(url, UIUtil.isRetina(), null);
+    return loadFromUrl(url, UIUtil.getScaleFactor(), null);
   }
 
   @Nullable
   public static Image loadFromUrl(URL url, boolean retina, ImageFilter filter) {
+    return loadFromUrl(url, retina ? 2 : 1, filter);
+  }
+
+  /**
+   * Loads the variant best matching the scale, e.g. {@code icon@1.5x.png} or {@code icon@2x.png},
+   * falling back to {@code icon.png}.
+   * SVG images are rasterized right at the scale instead.
+   *
+   * @param scale device scale the image is painted at
+   * @return the image; a variant is wrapped into a {@link JBHiDPIScaledImage}
+   *         resampled to the exact scale
+   * @see #getVariantScales(float)
+   */
+  @Nullable
+  public static Image loadFromUrl(URL url, float scale, ImageFilter filter) {
+    return loadFromUrl(url, scale, filter, true);
+  }
+
+  /**
+   * Loads the image for painting at the given scale without touching {@link Toolkit}, screen devices
+   * or other AWT state, so it is safe and cheap to call in a headless JVM.
+   * The variant lookup matches {@link #loadFromUrl(URL, float, ImageFilter)}, but images are only decoded
+   * with ImageIO, and an {@link RGBImageFilter} is applied to the pixels directly.
+   *
+   * @param scale scale of the returned pixels
+   * @return {@link BufferedImage#TYPE_INT_ARGB_PRE} pixels of the image at the scale, e.g. 32x32 for a 16x16 icon at scale 2,
+   *         null if the image is missing or can't be decoded by ImageIO
+   */
+  @Nullable
+  public static BufferedImage loadRaster(@NotNull URL url, float scale, @Nullable RGBImageFilter filter) {
+    final Image image = loadFromUrl(url, scale, filter, false);
+    if (image == null) return null;
+    if (image instanceof JBHiDPIScaledImage) {
+      // variants and SVG images are already at the device size
+      return ImageUtil.toBufferedImage(image);
+    }
+    // a custom decoder may return any kind of image
+    final BufferedImage raster = ImageUtil.toBufferedImage(image);
+    if (raster == null || scale == 1) return raster;
+
+    final int width = Math.max(1, Math.round(raster.getWidth() * scale));
+    final int height = Math.max(1, Math.round(raster.getHeight() * scale));
+    return ImageUtil.resample(raster, width, height);
+  }
+
+  /**
+   * @param toolkit whether images ImageIO can't handle may be decoded and filtered with {@link Toolkit}
+   */
+  @Nullable
+  private static Image loadFromUrl(URL url, float scale, ImageFilter filter, boolean toolkit) {
+    final ImageLoadListener[] listeners = ourListeners;
+    final long start = listeners.length == 0 ? 0 : System.nanoTime();
+    long time = start;
+
     String file = url.toString();
+    if (isSvg(file)) {
+      final Image image = loadSvg(file, scale, filter);
+      phaseFinished(listeners, file, ImageLoadListener.Phase.DECODE, time);
+      imageLoaded(listeners, file, image, start);
+      return image;
+    }
 
-    boolean imageIsRetina = false;
+    float imageScale = 1;
 
     Image image = null;
+    String imageFile = null;
+    ByteBuffer imageData = null;
 
-    if (retina) {
-      try {
-        image = load(urlStream(getRetina2XName(file), false));
-        imageIsRetina = true;
-      } catch (IOException ignore) {
+    for (float variant : getVariantScales(scale)) {
+      final String variantFile = getScaledName(file, variant);
+      final boolean mayExist = ResourceIndex.mayExist(variantFile);
+      time = phaseFinished(listeners, variantFile, ImageLoadListener.Phase.RESOLVE, time);
+      if (mayExist) {
+        ByteBuffer data = null;
+        try {
+          data = urlBytes(variantFile, false);
+          time = phaseFinished(listeners, variantFile, ImageLoadListener.Phase.READ, time);
+          image = load(variantFile, data, toolkit);
+          time = phaseFinished(listeners, variantFile, ImageLoadListener.Phase.DECODE, time);
+        } catch (FileNotFoundException ignore) {
+          ResourceIndex.markMissing(variantFile);
+          time = phaseFinished(listeners, variantFile, ImageLoadListener.Phase.READ, time);
+        } catch (IOException ignore) {
+          time = phaseFinished(listeners, variantFile, data == null ? ImageLoadListener.Phase.READ : ImageLoadListener.Phase.DECODE, time);
+        }
+        if (image != null) {
+          imageData = data;
+          imageFile = variantFile;
+          imageScale = variant;
+        }
       }
+      variantLookedUp(listeners, variantFile, image != null);
+      if (image != null) break;
     }
 
     if (image == null) {
       try {
-        image = load(urlStream(file, true));
-        imageIsRetina = false;
+        imageData = urlBytes(file, true);
+        time = phaseFinished(listeners, file, ImageLoadListener.Phase.READ, time);
+        image = load(file, imageData, toolkit);
+        time = phaseFinished(listeners, file, ImageLoadListener.Phase.DECODE, time);
+        imageFile = file;
+        imageScale = 1;
       } catch (IOException ioe) {
       }
     }
 
     if (image != null) {
         if (filter != null) {
-          image = ImageUtil.filter(image, filter);
+          image = filter(imageFile, imageData, image, filter);
+          time = phaseFinished(listeners, file, ImageLoadListener.Phase.FILTER, time);
         }
-        if (image != null && UIUtil.isRetina() && imageIsRetina) {
-          image = RetinaImage.createFrom(image, ourComponent);
+        if (image != null) {
+          image = ImageUtil.createHiDPIImage(image, imageScale, scale);
+          phaseFinished(listeners, file, ImageLoadListener.Phase.SCALE, time);
         }
-        return image;
+    }
+    imageLoaded(listeners, file, image, start);
+    return image;
+  }
+
+  /**
+   * Reads the icon dimensions from the PNG or GIF header without decoding pixels.
+   * The variant lookup matches {@link #loadFromUrl(URL, boolean, ImageFilter)}.
+   */
+  @Nullable
+  public static Dimension loadSizeFromUrl(@NotNull URL url, boolean retina) {
+    return loadSizeFromUrl(url, retina ? 2 : 1);
+  }
+
+  /**
+   * Reads the icon dimensions from the PNG or GIF header without decoding pixels.
+   * The variant lookup and scaling match {@link #loadFromUrl(URL, float, ImageFilter)}.
+   *
+   * @return the size of the image {@link #loadFromUrl(URL, float, ImageFilter)} would return,
+   *         null if the image is missing or its format is not recognized
+   */
+  @Nullable
+  public static Dimension loadSizeFromUrl(@NotNull URL url, float scale) {
+    String file = url.toString();
+    if (isSvg(file)) {
+      final SvgImage svg = getSvgImage(file);
+      return svg == null ? null : new Dimension(Math.max(1, Math.round(svg.getWidth())), Math.max(1, Math.round(svg.getHeight())));
+    }
+
+    for (float variant : getVariantScales(scale)) {
+      final String variantFile = getScaledName(file, variant);
+      if (!ResourceIndex.mayExist(variantFile)) continue;
+      try {
+        Dimension size = readSize(urlStream(variantFile, false));
+        if (size != null) {
+          size.width = Math.max(1, Math.round(size.width / variant));
+          size.height = Math.max(1, Math.round(size.height / variant));
+          return size;
+        }
+      } catch (FileNotFoundException ignore) {
+        ResourceIndex.markMissing(variantFile);
+      } catch (IOException ignore) {
+      }
+    }
+
+    try {
+      return readSize(urlStream(file, true));
+    } catch (IOException ignore) {
     }
     return null;
   }
 
+  /**
+   * Reports timings and outcomes of image loading to the listener. Loading is not slowed down
+   * by more than a field read when there are no listeners.
+   */
+  public static void addListener(@NotNull ImageLoadListener listener) {
+    synchronized (ImageLoader.class) {
+      final ImageLoadListener[] listeners = Arrays.copyOf(ourListeners, ourListeners.length + 1);
+      listeners[listeners.length - 1] = listener;
+      ourListeners = listeners;
+    }
+  }
+
+  public static void removeListener(@NotNull ImageLoadListener listener) {
+    synchronized (ImageLoader.class) {
+      final List<ImageLoadListener> listeners = new ArrayList<ImageLoadListener>(Arrays.asList(ourListeners));
+      if (listeners.remove(listener)) {
+        ourListeners = listeners.toArray(new ImageLoadListener[listeners.size()]);
+      }
+    }
+  }
+
+  /**
+   * @return the current time if there are listeners to report the phase to, 0 otherwise
+   */
+  private static long phaseFinished(@NotNull ImageLoadListener[] listeners, @NotNull String file,
+                                    @NotNull ImageLoadListener.Phase phase, long start) {
+    if (listeners.length == 0) return 0;
+    final long now = System.nanoTime();
+    for (ImageLoadListener listener : listeners) {
+      listener.phaseFinished(file, phase, now - start);
+    }
+    return now;
+  }
+
+  private static void variantLookedUp(@NotNull ImageLoadListener[] listeners, @NotNull String file, boolean found) {
+    for (ImageLoadListener listener : listeners) {
+      listener.variantLookedUp(file, found);
+    }
+  }
+
+  private static void imageLoaded(@NotNull ImageLoadListener[] listeners, @NotNull String file, @Nullable Image image, long start) {
+    if (listeners.length == 0) return;
+    final long nanos = System.nanoTime() - start;
+    final long bytes = image == null ? 0 : IconCache.sizeOf(image);
+    for (ImageLoadListener listener : listeners) {
+      listener.imageLoaded(file, image != null, nanos, bytes);
+    }
+  }
+
+  static void trackerTimedOut() {
+    for (ImageLoadListener listener : ourListeners) {
+      listener.trackerTimedOut();
+    }
+  }
+
+  private static boolean isSvg(@NotNull String file) {
+    return "svg".equalsIgnoreCase(getExtension(file));
+  }
+
+  /**
+   * Rasterizes the vector image right at the device scale, so there is no variant to look up and nothing to resample.
+   */
+  @Nullable
+  private static Image loadSvg(@NotNull String file, float scale, @Nullable ImageFilter filter) {
+    final SvgImage svg = getSvgImage(file);
+    if (svg == null) return null;
+
+    final int width = Math.max(1, Math.round(svg.getWidth()));
+    final int height = Math.max(1, Math.round(svg.getHeight()));
+    Image image = svg.rasterize(Math.max(1, Math.round(width * scale)), Math.max(1, Math.round(height * scale)));
+    if (filter != null) {
+      image = ImageUtil.filter(image, filter);
+    }
+    if (scale == 1) return image;
+    return new JBHiDPIScaledImage(image, width, height, BufferedImage.TYPE_INT_ARGB, scale);
+  }
+
+  /**
+   * @return the parsed document, shared by the rasterizations at different scales
+   */
+  @Nullable
+  private static SvgImage getSvgImage(@NotNull String file) {
+    final SoftReference<SvgImage> ref = ourSvgImages.get(file);
+    SvgImage svg = ref == null ? null : ref.get();
+    if (svg == null) {
+      if (ref != null) {
+        // don't keep keys of collected images around
+        ourSvgImages.remove(file, ref);
+      }
+      try {
+        final ByteBuffer data = urlBytes(file, true);
+        if (data == null) return null;
+        svg = SvgImage.parse(data);
+      }
+      catch (IOException e) {
+        return null;
+      }
+      ourSvgImages.put(file, new SoftReference<SvgImage>(svg));
+    }
+    return svg;
+  }
+
+  @Nullable
+  private static Dimension readSize(@Nullable InputStream inputStream) throws IOException {
+    if (inputStream == null) return null;
+    final DataInputStream in = new DataInputStream(inputStream);
+    try {
+      final byte[] header = new byte[6];
+      in.readFully(header);
+      if ((header[0] & 0xFF) == 0x89 && header[1] == 'P' && header[2] == 'N' && header[3] == 'G') {
+        // rest of the signature, IHDR chunk length and type
+        in.skipBytes(2 + 4 + 4);
+        return new Dimension(in.readInt(), in.readInt());
+      }
+      if (header[0] == 'G' && header[1] == 'I' && header[2] == 'F') {
+        // logical screen size, little-endian
+        final int w = in.readUnsignedByte() | (in.readUnsignedByte() << 8);
+        final int h = in.readUnsignedByte() | (in.readUnsignedByte() << 8);
+        return new Dimension(w, h);
+      }
+      return null;
+    }
+    finally {
+      in.close();
+    }
+  }
+
   public static Image loadFromStream(@NotNull final InputStream inputStream, ImageFilter filter) throws IOException {
     Image image = load(inputStream);
     if(filter != null) {
       image = ImageUtil.filter(image, filter);
     }
     if (image != null && UIUtil.isRetina()) {
-      image = RetinaImage.createFrom(image, ourComponent);
+      image = RetinaImage.createFrom(image, null);
     }
     return image;
   }
 
   private static Image load(@NotNull final InputStream inputStream) throws IOException {
-      ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-      try {
-        byte[] buffer = new byte[1024];
-        while (true) {
-          final int n = inputStream.read(buffer);
-          if (n < 0) break;
-          outputStream.write(buffer, 0, n);
-        }
-      }
-      finally {
-        inputStream.close();
+      return decode(readFully(inputStream, -1), true);
+  }
+
+  @Nullable
+  private static Image load(@NotNull String path, @Nullable ByteBuffer data, boolean toolkit) throws IOException {
+    if (data == null) return null;
+
+    final DiskImageCache diskCache = ourDiskCache;
+    if (diskCache != null) {
+      final Image cached = diskCache.get(path, data);
+      if (cached != null) return cached;
+    }
+
+    final Image image = decode(data, toolkit);
+    if (diskCache != null && image instanceof BufferedImage) {
+      diskCache.put(path, data, (BufferedImage)image);
+    }
+    return image;
+  }
+
+  private static Image filter(@NotNull String path, @NotNull ByteBuffer data, @NotNull Image image, @NotNull ImageFilter filter) {
+    final DiskImageCache diskCache = ourDiskCache;
+    final String key = diskCache == null ? null : DiskImageCache.getFilteredKey(path, filter);
+    if (key != null) {
+      final Image cached = diskCache.get(key, data);
+      if (cached != null) return cached;
+    }
+
+    final Image filtered = ImageUtil.filter(image, filter);
+    if (key != null && filtered instanceof BufferedImage) {
+      diskCache.put(key, data, (BufferedImage)filtered);
+    }
+    return filtered;
+  }
+
+  @Nullable
+  private static File toFile(@NotNull URL url) {
+    try {
+      return new File(url.toURI());
+    }
+    catch (URISyntaxException e) {
+      return null;
+    }
+    catch (IllegalArgumentException e) {
+      return null;
+    }
+  }
+
+  @NotNull
+  private static ByteBuffer readFile(@NotNull File file) throws IOException {
+    final FileInputStream stream = new FileInputStream(file);
+    try {
+      final FileChannel channel = stream.getChannel();
+      final long size = channel.size();
+      if (size >= MAP_THRESHOLD) {
+        // the mapping stays valid after the channel is closed
+        return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
       }
+      final ByteBuffer buffer = ByteBuffer.allocate((int)size);
+      while (buffer.hasRemaining() && channel.read(buffer) >= 0) ;
+      buffer.flip();
+      return buffer;
+    }
+    finally {
+      stream.close();
+    }
+  }
 
-      Image image = Toolkit.getDefaultToolkit().createImage(outputStream.toByteArray(), 0, outputStream.size());
+  /**
+   * Reads the stream into a single array, sized up front when the length is known.
+   */
+  @NotNull
+  private static ByteBuffer readFully(@NotNull InputStream inputStream, long expectedSize) throws IOException {
+    try {
+      byte[] bytes = new byte[expectedSize >= 0 && expectedSize < Integer.MAX_VALUE ? (int)expectedSize : 4096];
+      int length = 0;
+      while (true) {
+        if (length == bytes.length) {
+          final int next = inputStream.read();
+          if (next < 0) break;
+          bytes = Arrays.copyOf(bytes, Math.max(2 * bytes.length, 4096));
+          bytes[length++] = (byte)next;
+        }
+        final int n = inputStream.read(bytes, length, bytes.length - length);
+        if (n < 0) break;
+        length += n;
+      }
+      return ByteBuffer.wrap(bytes, 0, length);
+    }
+    finally {
+      inputStream.close();
+    }
+  }
 
-      waitForImage(image);
+  @Nullable
+  private static Image decode(@NotNull ByteBuffer data, boolean toolkit) throws IOException {
+    final ImageDecoder fallback = toolkit ? FALLBACK_DECODER : RASTER_DECODER;
+    final ImageDecoder decoder = ourDecoder;
+    if (decoder instanceof ToolkitImageDecoder || decoder instanceof ImageIODecoder && !toolkit) {
+      return fallback.decode(data);
+    }
 
-      return image;
+    Image image = null;
+    try {
+      image = decoder.decode(data.duplicate());
+    }
+    catch (IOException ignore) {
+    }
+    return image != null ? image : fallback.decode(data);
   }
 
   public static String getRetina2XName(String file) {
+    return getScaledName(file, 2);
+  }
+
+  /**
+   * @return name of the variant of the file for the given scale, e.g. {@code icon@1.5x.png}
+   */
+  @NotNull
+  public static String getScaledName(@NotNull String file, float scale) {
     final String name = getNameWithoutExtension(file);
     final String ext = getExtension(file);
 
-    return name + "@2x." + ext;
+    return name + "@" + formatScale(scale) + "x." + ext;
+  }
+
+  /**
+   * @return the scale as used in variant names: {@code 2} rather than {@code 2.0}, but {@code 1.5}
+   */
+  @NotNull
+  public static String formatScale(float scale) {
+    return scale == (int)scale ? String.valueOf((int)scale) : String.valueOf(scale);
+  }
+
+  /**
+   * Lists the variant scales to look for when painting at the given device scale, best first.
+   * Variants at or above the device scale come first, so an image is rather downscaled than upscaled.
+   * The 1x image, which is always the last resort, is not included.
+   */
+  @NotNull
+  public static float[] getVariantScales(float scale) {
+    if (scale <= 1) return NO_VARIANTS;
+
+    final float[] result = new float[VARIANT_SCALES.length];
+    int count = 0;
+    for (float variant : VARIANT_SCALES) {
+      if (variant >= scale) result[count++] = variant;
+    }
+    for (int i = VARIANT_SCALES.length - 1; i >= 0; i--) {
+      if (VARIANT_SCALES[i] < scale) result[count++] = VARIANT_SCALES[i];
+    }
+    return result;
+  }
+
+  /**
+   * @return true if icon variants are looked up for the scale, e.g. 2 for {@code @2x} images
+   */
+  public static boolean isVariantScale(double scale) {
+    for (float variant : VARIANT_SCALES) {
+      if (variant == scale) return true;
+    }
+    return false;
   }
 
   @NotNull
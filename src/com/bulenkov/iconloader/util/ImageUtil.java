@@ -19,10 +19,10 @@ package com.bulenkov.iconloader.util;
 import com.bulenkov.iconloader.JBHiDPIScaledImage;
 import org.jetbrains.annotations.NotNull;
 
+import org.jetbrains.annotations.Nullable;
+
 import java.awt.*;
-import java.awt.image.FilteredImageSource;
-import java.awt.image.ImageFilter;
-import java.awt.image.ImageProducer;
+import java.awt.image.*;
 
 /**
  * @author Konstantin Bulenkov
@@ -40,7 +40,144 @@ public class ImageUtil {
 
   public static Image filter(Image image, ImageFilter filter) {
     if (image == null || filter == null) return image;
+    if (filter instanceof RGBImageFilter) {
+      final BufferedImage source = toBufferedImage(image);
+      if (source != null) {
+        return filterRGB(source, (RGBImageFilter)filter);
+      }
+    }
     return Toolkit.getDefaultToolkit().createImage(
       new FilteredImageSource(getSource(image), filter));
   }
+
+  /**
+   * Wraps an image whose pixels are drawn at {@code imageScale} for painting at {@code deviceScale}.
+   * If the two differ, the pixels are resampled once here rather than on every paint.
+   * A 1x image is left to the graphics to scale, there are no extra pixels to gain from resampling it.
+   *
+   * @return the image itself if its scale is 1, otherwise a {@link JBHiDPIScaledImage} of the logical size
+   */
+  @NotNull
+  public static Image createHiDPIImage(@NotNull Image image, float imageScale, float deviceScale) {
+    if (imageScale == 1) return image;
+
+    final int width = Math.max(1, Math.round(image.getWidth(null) / imageScale));
+    final int height = Math.max(1, Math.round(image.getHeight(null) / imageScale));
+    Image pixels = image;
+    if (imageScale != deviceScale) {
+      pixels = resample(image, Math.max(1, Math.round(width * deviceScale)), Math.max(1, Math.round(height * deviceScale)));
+    }
+    return new JBHiDPIScaledImage(pixels, width, height, BufferedImage.TYPE_INT_ARGB, deviceScale);
+  }
+
+  /**
+   * @return new {@link BufferedImage#TYPE_INT_ARGB_PRE} image with the pixels of the given one scaled to the given size
+   */
+  @NotNull
+  public static BufferedImage resample(@NotNull Image image, int width, int height) {
+    //noinspection UndesirableClassUsage
+    final BufferedImage scaled = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB_PRE);
+    final Graphics2D g = scaled.createGraphics();
+    g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BICUBIC);
+    g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+    g.drawImage(image, 0, 0, width, height, null);
+    g.dispose();
+    return scaled;
+  }
+
+  /**
+   * Applies the filter directly to the pixel array of the image, bypassing the {@link ImageProducer} pipeline.
+   *
+   * @return new {@link BufferedImage#TYPE_INT_ARGB_PRE} image with the filtered pixels
+   */
+  @NotNull
+  public static BufferedImage filterRGB(@NotNull BufferedImage image, @NotNull RGBImageFilter filter) {
+    final int w = image.getWidth();
+    final int h = image.getHeight();
+    final int[] pixels = new int[w * h];
+    final int type = image.getType();
+    if (type == BufferedImage.TYPE_INT_ARGB || type == BufferedImage.TYPE_INT_ARGB_PRE) {
+      // getDataElements() doesn't untrack the image the way grabbing its DataBuffer would
+      image.getRaster().getDataElements(0, 0, w, h, pixels);
+      if (type == BufferedImage.TYPE_INT_ARGB_PRE) {
+        unpremultiply(pixels);
+      }
+    }
+    else {
+      image.getRGB(0, 0, w, h, pixels, 0, w);
+    }
+
+    if (filter instanceof JBGrayFilter) {
+      ((JBGrayFilter)filter).filterRGB(pixels, 0, pixels.length);
+    }
+    else {
+      for (int y = 0, i = 0; y < h; y++) {
+        for (int x = 0; x < w; x++, i++) {
+          pixels[i] = filter.filterRGB(x, y, pixels[i]);
+        }
+      }
+    }
+
+    premultiply(pixels);
+    @SuppressWarnings("UndesirableClassUsage")
+    final BufferedImage result = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB_PRE);
+    result.getRaster().setDataElements(0, 0, w, h, pixels);
+    return result;
+  }
+
+  /**
+   * @return the pixels of the image: the image itself or the delegate of a {@link JBHiDPIScaledImage} if it is
+   *         a {@link BufferedImage}, otherwise a {@link BufferedImage#TYPE_INT_ARGB_PRE} copy;
+   *         null if the image isn't fully loaded yet
+   */
+  @Nullable
+  public static BufferedImage toBufferedImage(@NotNull Image image) {
+    if (image instanceof JBHiDPIScaledImage) {
+      final Image delegate = ((JBHiDPIScaledImage)image).getDelegate();
+      image = delegate != null ? delegate : ((JBHiDPIScaledImage)image).getBuffer();
+    }
+    if (image instanceof BufferedImage) {
+      return (BufferedImage)image;
+    }
+
+    final int w = image.getWidth(null);
+    final int h = image.getHeight(null);
+    if (w <= 0 || h <= 0) return null; // not loaded yet, let the producer pipeline handle it
+
+    @SuppressWarnings("UndesirableClassUsage")
+    final BufferedImage result = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB_PRE);
+    final Graphics2D g = result.createGraphics();
+    final boolean complete = g.drawImage(image, 0, 0, null);
+    g.dispose();
+    return complete ? result : null;
+  }
+
+  private static void unpremultiply(int[] pixels) {
+    for (int i = 0; i < pixels.length; i++) {
+      final int argb = pixels[i];
+      final int a = argb >>> 24;
+      if (a != 0 && a != 255) {
+        final int r = ((argb >> 16) & 0xff) * 255 / a;
+        final int g = ((argb >> 8) & 0xff) * 255 / a;
+        final int b = (argb & 0xff) * 255 / a;
+        pixels[i] = (a << 24) | (r << 16) | (g << 8) | b;
+      }
+    }
+  }
+
+  private static void premultiply(int[] pixels) {
+    for (int i = 0; i < pixels.length; i++) {
+      final int argb = pixels[i];
+      final int a = argb >>> 24;
+      if (a == 0) {
+        pixels[i] = 0;
+      }
+      else if (a != 255) {
+        final int r = (((argb >> 16) & 0xff) * a + 127) / 255;
+        final int g = (((argb >> 8) & 0xff) * a + 127) / 255;
+        final int b = ((argb & 0xff) * a + 127) / 255;
+        pixels[i] = (a << 24) | (r << 16) | (g << 8) | b;
+      }
+    }
+  }
 }
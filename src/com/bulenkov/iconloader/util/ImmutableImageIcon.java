@@ -0,0 +1,83 @@
+/*
+ * Copyright 2000-2016 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bulenkov.iconloader.util;
+
+import org.jetbrains.annotations.NotNull;
+
+import javax.swing.*;
+import java.awt.*;
+
+/**
+ * HiDPI-aware icon over a fully loaded image which never changes. Unlike {@link ImageIcon},
+ * it doesn't track the image loading and doesn't lock when painting, so it can be painted
+ * from several threads at once.
+ */
+public final class ImmutableImageIcon implements Icon {
+  private static final int LOAD_TIMEOUT = 5000;
+
+  private final Image myImage;
+  private final int myWidth;
+  private final int myHeight;
+
+  /**
+   * @param image the image; one which is still being produced, e.g. a filtered toolkit image, is waited for here,
+   *              for {@value #LOAD_TIMEOUT} ms at most
+   */
+  public ImmutableImageIcon(@NotNull Image image) {
+    if (image.getWidth(null) < 0 || image.getHeight(null) < 0) {
+      waitFor(image);
+    }
+    myImage = image;
+    myWidth = image.getWidth(null);
+    myHeight = image.getHeight(null);
+  }
+
+  private static void waitFor(@NotNull Image image) {
+    final MediaTracker tracker = new MediaTracker(ImageLoader.getComponent());
+    tracker.addImage(image, 0);
+    try {
+      tracker.waitForID(0, LOAD_TIMEOUT);
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return;
+    }
+    if (!tracker.checkID(0)) {
+      ImageLoader.trackerTimedOut();
+    }
+  }
+
+  @NotNull
+  public Image getImage() {
+    return myImage;
+  }
+
+  @Override
+  public void paintIcon(Component c, Graphics g, int x, int y) {
+    UIUtil.drawImage(g, myImage, x, y, c);
+  }
+
+  @Override
+  public int getIconWidth() {
+    return myWidth;
+  }
+
+  @Override
+  public int getIconHeight() {
+    return myHeight;
+  }
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright 2000-2016 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bulenkov.iconloader.util;
+
+import org.jetbrains.annotations.NotNull;
+
+import javax.swing.*;
+
+/**
+ * {@link GrayFilter} which can also convert a whole pixel array in one pass.
+ */
+public class JBGrayFilter extends GrayFilter {
+  private final boolean myBrighter;
+  private final int myPercent;
+
+  public JBGrayFilter(boolean brighter, int percent) {
+    super(brighter, percent);
+    myBrighter = brighter;
+    myPercent = percent;
+  }
+
+  public boolean isBrighter() {
+    return myBrighter;
+  }
+
+  public int getPercent() {
+    return myPercent;
+  }
+
+  /**
+   * Filters non-premultiplied ARGB pixels in place, producing the same values as {@link #filterRGB(int, int, int)}.
+   */
+  public void filterRGB(@NotNull int[] pixels, int offset, int length) {
+    final boolean brighter = myBrighter;
+    final int factor = 100 - myPercent;
+    for (int i = offset, end = offset + length; i < end; i++) {
+      final int rgb = pixels[i];
+      int gray = (int)((0.30 * ((rgb >> 16) & 0xff) + 0.59 * ((rgb >> 8) & 0xff) + 0.11 * (rgb & 0xff)) / 3);
+      gray = brighter ? 255 - ((255 - gray) * factor / 100) : gray * factor / 100;
+      if (gray < 0) gray = 0;
+      if (gray > 255) gray = 255;
+      pixels[i] = (rgb & 0xff000000) | (gray << 16) | (gray << 8) | gray;
+    }
+  }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright 2000-2016 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bulenkov.iconloader.util;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+/**
+ * Answers whether an image resource may exist without opening a connection to it.
+ * <p/>
+ * Image entries of a jar are indexed once, on the first lookup in that jar. For other URLs
+ * the index remembers resources which were not found.
+ * Optional variants such as {@code @2x} images are looked up through the index, so a missing
+ * variant costs a hash lookup instead of a failed URL connection and an exception.
+ */
+public final class ResourceIndex {
+  private static final String JAR_SEPARATOR = "!/";
+  private static final String[] IMAGE_EXTENSIONS = {".png", ".gif", ".jpg", ".jpeg", ".svg"};
+  private static final Set<String> UNKNOWN = Collections.emptySet();
+
+  private static final ConcurrentHashMap<String, Set<String>> ourJarEntries = new ConcurrentHashMap<String, Set<String>>();
+  private static final Set<String> ourMissing = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+  private ResourceIndex() { }
+
+  /**
+   * @return false if the resource is known not to exist
+   */
+  public static boolean mayExist(@NotNull String url) {
+    if (ourMissing.contains(url)) return false;
+
+    final int separator = url.indexOf(JAR_SEPARATOR);
+    // nested jars can't be indexed with a JarURLConnection
+    if (url.startsWith("jar:") && separator > 0 && url.indexOf(JAR_SEPARATOR, separator + 1) < 0) {
+      final String entry = decode(url.substring(separator + JAR_SEPARATOR.length()));
+      if (isImage(entry)) {
+        final Set<String> entries = getJarEntries(url.substring("jar:".length(), separator));
+        if (entries != UNKNOWN) {
+          return entries.contains(entry);
+        }
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Records that the resource was not found. Other failures to read it may be transient and must not be recorded.
+   */
+  public static void markMissing(@NotNull String url) {
+    ourMissing.add(url);
+  }
+
+  /**
+   * Forgets everything known about resources, e.g. after jars or directories have been modified.
+   */
+  public static void clear() {
+    ourMissing.clear();
+    ourJarEntries.clear();
+  }
+
+  @NotNull
+  private static Set<String> getJarEntries(@NotNull String jarUrl) {
+    Set<String> entries = ourJarEntries.get(jarUrl);
+    if (entries == null) {
+      entries = readJarEntries(jarUrl);
+      final Set<String> existing = ourJarEntries.putIfAbsent(jarUrl, entries);
+      if (existing != null) {
+        entries = existing;
+      }
+    }
+    return entries;
+  }
+
+  @NotNull
+  private static Set<String> readJarEntries(@NotNull String jarUrl) {
+    final JarFile jarFile = openJarFile(jarUrl);
+    if (jarFile == null) return UNKNOWN;
+
+    final Set<String> entries = new HashSet<String>();
+    final Enumeration<JarEntry> enumeration = jarFile.entries();
+    while (enumeration.hasMoreElements()) {
+      final JarEntry entry = enumeration.nextElement();
+      if (!entry.isDirectory() && isImage(entry.getName())) {
+        entries.add(entry.getName());
+      }
+    }
+    return entries;
+  }
+
+  private static boolean isImage(@NotNull String name) {
+    final String lowerCase = name.toLowerCase(Locale.ENGLISH);
+    for (String extension : IMAGE_EXTENSIONS) {
+      if (lowerCase.endsWith(extension)) return true;
+    }
+    return false;
+  }
+
+  /**
+   * @return the entry name with percent escapes decoded, as {@link JarEntry#getName()} returns it
+   */
+  @NotNull
+  private static String decode(@NotNull String path) {
+    if (path.indexOf('%') < 0) return path;
+    try {
+      // a leading slash keeps a colon in the first segment from being parsed as a scheme
+      return new URI("/" + path).getPath().substring(1);
+    }
+    catch (URISyntaxException e) {
+      return path;
+    }
+  }
+
+  @Nullable
+  private static JarFile openJarFile(@NotNull String jarUrl) {
+    try {
+      final URLConnection connection = new URL("jar:" + jarUrl + JAR_SEPARATOR).openConnection();
+      if (connection instanceof JarURLConnection) {
+        // the jar file is shared with the URL connection cache, so it must not be closed here
+        return ((JarURLConnection)connection).getJarFile();
+      }
+    }
+    catch (IOException ignore) {
+    }
+    return null;
+  }
+}
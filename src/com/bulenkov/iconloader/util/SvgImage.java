@@ -0,0 +1,469 @@
+/*
+ * Copyright 2000-2016 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bulenkov.iconloader.util;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+import org.xml.sax.EntityResolver;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+
+import javax.xml.XMLConstants;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import java.awt.*;
+import java.awt.geom.*;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Vector image parsed from an SVG document into a tree of Java2D shapes, which can be
+ * rasterized at any scale.
+ * <p/>
+ * Only a subset of SVG is supported: {@code g}, {@code path}, {@code rect}, {@code circle}, {@code ellipse},
+ * {@code line}, {@code polyline} and {@code polygon} elements, transforms, and solid color fills and strokes
+ * with opacity. Gradients, patterns, text, {@code use} references, clipping and masks are ignored.
+ * External resources are never fetched.
+ */
+public final class SvgImage {
+  private static final Map<String, Color> NAMED_COLORS = new HashMap<String, Color>();
+
+  static {
+    NAMED_COLORS.put("black", Color.BLACK);
+    NAMED_COLORS.put("white", Color.WHITE);
+    NAMED_COLORS.put("red", new Color(0xff0000));
+    NAMED_COLORS.put("green", new Color(0x008000));
+    NAMED_COLORS.put("lime", new Color(0x00ff00));
+    NAMED_COLORS.put("blue", new Color(0x0000ff));
+    NAMED_COLORS.put("yellow", new Color(0xffff00));
+    NAMED_COLORS.put("orange", new Color(0xffa500));
+    NAMED_COLORS.put("gray", new Color(0x808080));
+    NAMED_COLORS.put("grey", new Color(0x808080));
+    NAMED_COLORS.put("silver", new Color(0xc0c0c0));
+    NAMED_COLORS.put("transparent", new Color(0, 0, 0, 0));
+  }
+
+  private final float myWidth;
+  private final float myHeight;
+  private final Group myRoot;
+
+  private SvgImage(float width, float height, @NotNull Group root) {
+    myWidth = width;
+    myHeight = height;
+    myRoot = root;
+  }
+
+  @NotNull
+  public static SvgImage parse(@NotNull ByteBuffer data) throws IOException {
+    final byte[] bytes = new byte[data.remaining()];
+    data.duplicate().get(bytes);
+
+    final Document document;
+    try {
+      final DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+      factory.setValidating(false);
+      factory.setExpandEntityReferences(false);
+      factory.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
+      try {
+        factory.setFeature("http://apache.org/xml/features/nonvalidating/load-external-dtd", false);
+      }
+      catch (ParserConfigurationException ignore) {
+        // not Xerces, the entity resolver below keeps external DTDs from being loaded
+      }
+      final DocumentBuilder builder = factory.newDocumentBuilder();
+      builder.setEntityResolver(new EntityResolver() {
+        @Override
+        public InputSource resolveEntity(String publicId, String systemId) {
+          return new InputSource(new StringReader(""));
+        }
+      });
+      document = builder.parse(new ByteArrayInputStream(bytes));
+    }
+    catch (ParserConfigurationException e) {
+      throw new IOException(e.toString());
+    }
+    catch (SAXException e) {
+      throw new IOException("Malformed SVG: " + e.getMessage());
+    }
+
+    final Element svg = document.getDocumentElement();
+    if (!"svg".equals(localName(svg))) {
+      throw new IOException("Not an SVG document: " + svg.getTagName());
+    }
+    try {
+      float[] viewBox = null;
+      if (svg.hasAttribute("viewBox")) {
+        viewBox = SvgParser.parseNumbers(svg.getAttribute("viewBox"));
+        if (viewBox.length != 4 || viewBox[2] <= 0 || viewBox[3] <= 0) viewBox = null;
+      }
+      final float width = parseLength(svg.getAttribute("width"), viewBox != null ? viewBox[2] : -1);
+      final float height = parseLength(svg.getAttribute("height"), viewBox != null ? viewBox[3] : -1);
+      if (width <= 0 || height <= 0) {
+        throw new IOException("SVG has no size");
+      }
+
+      AffineTransform transform = null;
+      if (viewBox != null) {
+        transform = AffineTransform.getScaleInstance(width / viewBox[2], height / viewBox[3]);
+        transform.translate(-viewBox[0], -viewBox[1]);
+      }
+      final Group root = new Group(transform, 1);
+      parseChildren(svg, new Style(), root);
+      return new SvgImage(width, height, root);
+    }
+    catch (IllegalArgumentException e) {
+      throw new IOException("Malformed SVG: " + e.getMessage());
+    }
+  }
+
+  public float getWidth() {
+    return myWidth;
+  }
+
+  public float getHeight() {
+    return myHeight;
+  }
+
+  /**
+   * Paints the image in user space, with its top left corner at the origin.
+   */
+  public void paint(@NotNull Graphics2D g) {
+    final Color color = g.getColor();
+    final Stroke stroke = g.getStroke();
+    myRoot.paint(g, 1);
+    g.setColor(color);
+    g.setStroke(stroke);
+  }
+
+  /**
+   * @return new {@link BufferedImage#TYPE_INT_ARGB_PRE} image with the drawing scaled to the given size
+   */
+  @NotNull
+  public BufferedImage rasterize(int width, int height) {
+    //noinspection UndesirableClassUsage
+    final BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB_PRE);
+    final Graphics2D g = image.createGraphics();
+    try {
+      g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+      g.setRenderingHint(RenderingHints.KEY_STROKE_CONTROL, RenderingHints.VALUE_STROKE_PURE);
+      g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+      g.scale((double)width / myWidth, (double)height / myHeight);
+      paint(g);
+    }
+    finally {
+      g.dispose();
+    }
+    return image;
+  }
+
+  private static void parseChildren(@NotNull Element parent, @NotNull Style parentStyle, @NotNull Group group) {
+    final NodeList children = parent.getChildNodes();
+    for (int i = 0; i < children.getLength(); i++) {
+      final Node child = children.item(i);
+      if (child instanceof Element) {
+        final PaintNode node = parseElement((Element)child, parentStyle);
+        if (node != null) {
+          group.myChildren.add(node);
+        }
+      }
+    }
+  }
+
+  @Nullable
+  private static PaintNode parseElement(@NotNull Element element, @NotNull Style parentStyle) {
+    final String name = localName(element);
+    final Map<String, String> properties = getProperties(element);
+    if ("none".equals(properties.get("display"))) return null;
+
+    final Style style = parentStyle.derive(properties);
+    final String transformValue = element.getAttribute("transform");
+    final AffineTransform transform = transformValue.length() == 0 ? null : SvgParser.parseTransform(transformValue);
+    final float opacity = properties.containsKey("opacity") ? parseOpacity(properties.get("opacity")) : 1;
+
+    if ("g".equals(name) || "svg".equals(name) || "a".equals(name)) {
+      final Group group = new Group(transform, opacity);
+      parseChildren(element, style, group);
+      return group;
+    }
+
+    final Shape shape = parseShape(element, name);
+    if (shape == null) return null;
+    if (shape instanceof Path2D) {
+      ((Path2D)shape).setWindingRule(style.myEvenOdd ? Path2D.WIND_EVEN_ODD : Path2D.WIND_NON_ZERO);
+    }
+    final ShapeNode node = new ShapeNode(shape, style, opacity);
+    if (transform == null) return node;
+
+    final Group group = new Group(transform, 1);
+    group.myChildren.add(node);
+    return group;
+  }
+
+  @Nullable
+  private static Shape parseShape(@NotNull Element element, @NotNull String name) {
+    if ("path".equals(name)) {
+      return SvgParser.parsePath(element.getAttribute("d"));
+    }
+    if ("rect".equals(name)) {
+      final float w = number(element, "width");
+      final float h = number(element, "height");
+      if (w <= 0 || h <= 0) return null;
+      float rx = number(element, "rx");
+      float ry = number(element, "ry");
+      if (!element.hasAttribute("rx")) rx = ry;
+      if (!element.hasAttribute("ry")) ry = rx;
+      if (rx > 0 || ry > 0) {
+        return new RoundRectangle2D.Float(number(element, "x"), number(element, "y"), w, h,
+                                          2 * Math.min(rx, w / 2), 2 * Math.min(ry, h / 2));
+      }
+      return new Rectangle2D.Float(number(element, "x"), number(element, "y"), w, h);
+    }
+    if ("circle".equals(name)) {
+      final float r = number(element, "r");
+      if (r <= 0) return null;
+      return new Ellipse2D.Float(number(element, "cx") - r, number(element, "cy") - r, 2 * r, 2 * r);
+    }
+    if ("ellipse".equals(name)) {
+      final float rx = number(element, "rx");
+      final float ry = number(element, "ry");
+      if (rx <= 0 || ry <= 0) return null;
+      return new Ellipse2D.Float(number(element, "cx") - rx, number(element, "cy") - ry, 2 * rx, 2 * ry);
+    }
+    if ("line".equals(name)) {
+      return new Line2D.Float(number(element, "x1"), number(element, "y1"), number(element, "x2"), number(element, "y2"));
+    }
+    if ("polyline".equals(name) || "polygon".equals(name)) {
+      final float[] points = SvgParser.parseNumbers(element.getAttribute("points"));
+      if (points.length < 4) return null;
+      final Path2D path = new Path2D.Float();
+      path.moveTo(points[0], points[1]);
+      for (int i = 2; i + 1 < points.length; i += 2) {
+        path.lineTo(points[i], points[i + 1]);
+      }
+      if ("polygon".equals(name)) {
+        path.closePath();
+      }
+      return path;
+    }
+    // defs, title, gradients, text and other unsupported elements
+    return null;
+  }
+
+  /**
+   * @return presentation attributes of the element, overridden by the declarations of its {@code style} attribute
+   */
+  @NotNull
+  private static Map<String, String> getProperties(@NotNull Element element) {
+    final Map<String, String> properties = new HashMap<String, String>();
+    for (String name : Style.PROPERTIES) {
+      if (element.hasAttribute(name)) {
+        properties.put(name, element.getAttribute(name).trim());
+      }
+    }
+    for (String declaration : element.getAttribute("style").split(";")) {
+      final int colon = declaration.indexOf(':');
+      if (colon > 0) {
+        properties.put(declaration.substring(0, colon).trim(), declaration.substring(colon + 1).trim());
+      }
+    }
+    return properties;
+  }
+
+  @NotNull
+  private static String localName(@NotNull Element element) {
+    final String name = element.getTagName();
+    return name.substring(name.indexOf(':') + 1);
+  }
+
+  private static float number(@NotNull Element element, @NotNull String attribute) {
+    return parseLength(element.getAttribute(attribute), 0);
+  }
+
+  private static float parseLength(@NotNull String value, float defaultValue) {
+    value = value.trim();
+    if (value.length() == 0 || value.endsWith("%")) return defaultValue;
+    if (value.endsWith("px")) {
+      value = value.substring(0, value.length() - 2).trim();
+    }
+    return Float.parseFloat(value);
+  }
+
+  private static float parseOpacity(@NotNull String value) {
+    return Math.max(0, Math.min(1, Float.parseFloat(value)));
+  }
+
+  /**
+   * @return the color, null for {@code none} and paints this renderer doesn't support
+   */
+  @Nullable
+  private static Color parseColor(@NotNull String value) {
+    value = value.trim();
+    if (value.startsWith("#")) {
+      final String hex = value.substring(1);
+      if (hex.length() == 3) {
+        final int rgb = Integer.parseInt(hex, 16);
+        return new Color(((rgb >> 8) & 0xf) * 0x11, ((rgb >> 4) & 0xf) * 0x11, (rgb & 0xf) * 0x11);
+      }
+      if (hex.length() == 6) {
+        return new Color(Integer.parseInt(hex, 16));
+      }
+      throw new IllegalArgumentException("Malformed color: " + value);
+    }
+    if (value.startsWith("rgb(") && value.endsWith(")")) {
+      final String[] parts = value.substring(4, value.length() - 1).split(",");
+      if (parts.length != 3) throw new IllegalArgumentException("Malformed color: " + value);
+      final int[] rgb = new int[3];
+      for (int i = 0; i < 3; i++) {
+        final String part = parts[i].trim();
+        final float component = part.endsWith("%")
+                                ? Float.parseFloat(part.substring(0, part.length() - 1)) * 255 / 100
+                                : Float.parseFloat(part);
+        rgb[i] = Math.max(0, Math.min(255, Math.round(component)));
+      }
+      return new Color(rgb[0], rgb[1], rgb[2]);
+    }
+    if ("currentColor".equals(value)) {
+      return Color.BLACK;
+    }
+    return NAMED_COLORS.get(value.toLowerCase());
+  }
+
+  /**
+   * Inherited presentation properties.
+   */
+  private static final class Style implements Cloneable {
+    private static final String[] PROPERTIES = {
+      "fill", "fill-opacity", "fill-rule", "stroke", "stroke-opacity", "stroke-width",
+      "stroke-linecap", "stroke-linejoin", "stroke-miterlimit", "opacity", "display"
+    };
+
+    private Color myFill = Color.BLACK;
+    private float myFillOpacity = 1;
+    private boolean myEvenOdd;
+    private Color myStroke;
+    private float myStrokeOpacity = 1;
+    private float myStrokeWidth = 1;
+    private int myCap = BasicStroke.CAP_BUTT;
+    private int myJoin = BasicStroke.JOIN_MITER;
+    private float myMiterLimit = 4;
+
+    @NotNull
+    private Style derive(@NotNull Map<String, String> properties) {
+      final Style style;
+      try {
+        style = (Style)clone();
+      }
+      catch (CloneNotSupportedException e) {
+        throw new IllegalStateException(e);
+      }
+      String value;
+      if ((value = properties.get("fill")) != null) style.myFill = parseColor(value);
+      if ((value = properties.get("fill-opacity")) != null) style.myFillOpacity = parseOpacity(value);
+      if ((value = properties.get("fill-rule")) != null) style.myEvenOdd = "evenodd".equals(value);
+      if ((value = properties.get("stroke")) != null) style.myStroke = parseColor(value);
+      if ((value = properties.get("stroke-opacity")) != null) style.myStrokeOpacity = parseOpacity(value);
+      if ((value = properties.get("stroke-width")) != null) style.myStrokeWidth = parseLength(value, 1);
+      if ((value = properties.get("stroke-miterlimit")) != null) style.myMiterLimit = Math.max(1, Float.parseFloat(value));
+      if ((value = properties.get("stroke-linecap")) != null) {
+        style.myCap = "round".equals(value) ? BasicStroke.CAP_ROUND : "square".equals(value) ? BasicStroke.CAP_SQUARE : BasicStroke.CAP_BUTT;
+      }
+      if ((value = properties.get("stroke-linejoin")) != null) {
+        style.myJoin = "round".equals(value) ? BasicStroke.JOIN_ROUND : "bevel".equals(value) ? BasicStroke.JOIN_BEVEL : BasicStroke.JOIN_MITER;
+      }
+      return style;
+    }
+  }
+
+  private static abstract class PaintNode {
+    abstract void paint(@NotNull Graphics2D g, float opacity);
+  }
+
+  private static final class Group extends PaintNode {
+    private final AffineTransform myTransform;
+    private final float myOpacity;
+    private final List<PaintNode> myChildren = new ArrayList<PaintNode>();
+
+    private Group(@Nullable AffineTransform transform, float opacity) {
+      myTransform = transform;
+      myOpacity = opacity;
+    }
+
+    @Override
+    void paint(@NotNull Graphics2D g, float opacity) {
+      final AffineTransform saved = myTransform == null ? null : g.getTransform();
+      if (myTransform != null) {
+        g.transform(myTransform);
+      }
+      // group opacity is approximated by fading every child on its own
+      for (PaintNode child : myChildren) {
+        child.paint(g, opacity * myOpacity);
+      }
+      if (saved != null) {
+        g.setTransform(saved);
+      }
+    }
+  }
+
+  private static final class ShapeNode extends PaintNode {
+    private final Shape myShape;
+    private final Color myFill;
+    private final Color myStroke;
+    private final Stroke myStrokeStyle;
+    private final float myFillOpacity;
+    private final float myStrokeOpacity;
+
+    private ShapeNode(@NotNull Shape shape, @NotNull Style style, float opacity) {
+      myShape = shape;
+      myFill = style.myFill;
+      myStroke = style.myStrokeWidth > 0 ? style.myStroke : null;
+      myStrokeStyle = myStroke == null ? null : new BasicStroke(style.myStrokeWidth, style.myCap, style.myJoin, style.myMiterLimit);
+      myFillOpacity = style.myFillOpacity * opacity;
+      myStrokeOpacity = style.myStrokeOpacity * opacity;
+    }
+
+    @Override
+    void paint(@NotNull Graphics2D g, float opacity) {
+      if (myFill != null) {
+        g.setColor(withOpacity(myFill, myFillOpacity * opacity));
+        g.fill(myShape);
+      }
+      if (myStroke != null) {
+        g.setColor(withOpacity(myStroke, myStrokeOpacity * opacity));
+        g.setStroke(myStrokeStyle);
+        g.draw(myShape);
+      }
+    }
+
+    @NotNull
+    private static Color withOpacity(@NotNull Color color, float opacity) {
+      if (opacity >= 1) return color;
+      return new Color(color.getRed(), color.getGreen(), color.getBlue(), Math.round(color.getAlpha() * opacity));
+    }
+  }
+}
@@ -0,0 +1,341 @@
+/*
+ * Copyright 2000-2016 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bulenkov.iconloader.util;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Arc2D;
+import java.awt.geom.Path2D;
+
+/**
+ * Parses the number lists of SVG attributes: path data, point lists and transforms.
+ * Malformed input results in an {@link IllegalArgumentException}.
+ */
+final class SvgParser {
+  private final String myText;
+  private int myPos;
+
+  SvgParser(@NotNull String text) {
+    myText = text;
+  }
+
+  @NotNull
+  static Path2D parsePath(@NotNull String data) {
+    final SvgParser parser = new SvgParser(data);
+    final Path2D path = new Path2D.Float();
+    float x = 0, y = 0;            // current point
+    float startX = 0, startY = 0;  // start of the current subpath
+    float ctrlX = 0, ctrlY = 0;    // last control point, for smooth curves
+    char command = 0;
+    char previous = 0;
+
+    while (true) {
+      parser.skipSeparators();
+      if (parser.atEnd()) break;
+
+      final char c = parser.peek();
+      if (Character.isLetter(c)) {
+        command = c;
+        parser.myPos++;
+      }
+      else if (command == 0 || command == 'Z' || command == 'z') {
+        throw new IllegalArgumentException("Unexpected '" + c + "' in path data: " + data);
+      }
+
+      final boolean relative = Character.isLowerCase(command);
+      final float baseX = relative ? x : 0;
+      final float baseY = relative ? y : 0;
+      switch (Character.toUpperCase(command)) {
+        case 'M':
+          x = baseX + parser.nextNumber();
+          y = baseY + parser.nextNumber();
+          path.moveTo(x, y);
+          startX = x;
+          startY = y;
+          // further coordinate pairs are implicit line commands
+          command = relative ? 'l' : 'L';
+          break;
+        case 'L':
+          x = baseX + parser.nextNumber();
+          y = baseY + parser.nextNumber();
+          path.lineTo(x, y);
+          break;
+        case 'H':
+          x = baseX + parser.nextNumber();
+          path.lineTo(x, y);
+          break;
+        case 'V':
+          y = baseY + parser.nextNumber();
+          path.lineTo(x, y);
+          break;
+        case 'C': {
+          final float x1 = baseX + parser.nextNumber();
+          final float y1 = baseY + parser.nextNumber();
+          ctrlX = baseX + parser.nextNumber();
+          ctrlY = baseY + parser.nextNumber();
+          x = baseX + parser.nextNumber();
+          y = baseY + parser.nextNumber();
+          path.curveTo(x1, y1, ctrlX, ctrlY, x, y);
+          break;
+        }
+        case 'S': {
+          final boolean smooth = "CcSs".indexOf(previous) >= 0;
+          final float x1 = smooth ? 2 * x - ctrlX : x;
+          final float y1 = smooth ? 2 * y - ctrlY : y;
+          ctrlX = baseX + parser.nextNumber();
+          ctrlY = baseY + parser.nextNumber();
+          x = baseX + parser.nextNumber();
+          y = baseY + parser.nextNumber();
+          path.curveTo(x1, y1, ctrlX, ctrlY, x, y);
+          break;
+        }
+        case 'Q':
+          ctrlX = baseX + parser.nextNumber();
+          ctrlY = baseY + parser.nextNumber();
+          x = baseX + parser.nextNumber();
+          y = baseY + parser.nextNumber();
+          path.quadTo(ctrlX, ctrlY, x, y);
+          break;
+        case 'T': {
+          final boolean smooth = "QqTt".indexOf(previous) >= 0;
+          ctrlX = smooth ? 2 * x - ctrlX : x;
+          ctrlY = smooth ? 2 * y - ctrlY : y;
+          x = baseX + parser.nextNumber();
+          y = baseY + parser.nextNumber();
+          path.quadTo(ctrlX, ctrlY, x, y);
+          break;
+        }
+        case 'A': {
+          final float rx = parser.nextNumber();
+          final float ry = parser.nextNumber();
+          final float angle = parser.nextNumber();
+          final boolean largeArc = parser.nextFlag();
+          final boolean sweep = parser.nextFlag();
+          final float x1 = baseX + parser.nextNumber();
+          final float y1 = baseY + parser.nextNumber();
+          arcTo(path, x, y, rx, ry, angle, largeArc, sweep, x1, y1);
+          x = x1;
+          y = y1;
+          break;
+        }
+        case 'Z':
+          path.closePath();
+          x = startX;
+          y = startY;
+          break;
+        default:
+          throw new IllegalArgumentException("Unknown path command '" + command + "': " + data);
+      }
+      previous = command;
+    }
+    return path;
+  }
+
+  @NotNull
+  static float[] parseNumbers(@NotNull String text) {
+    final SvgParser parser = new SvgParser(text);
+    float[] numbers = new float[8];
+    int count = 0;
+    while (true) {
+      parser.skipSeparators();
+      if (parser.atEnd()) break;
+      if (count == numbers.length) {
+        final float[] grown = new float[2 * count];
+        System.arraycopy(numbers, 0, grown, 0, count);
+        numbers = grown;
+      }
+      numbers[count++] = parser.nextNumber();
+    }
+    final float[] result = new float[count];
+    System.arraycopy(numbers, 0, result, 0, count);
+    return result;
+  }
+
+  /**
+   * @return the transform described by a list like {@code translate(4 4) rotate(45)}, null if the list is empty
+   */
+  @Nullable
+  static AffineTransform parseTransform(@NotNull String text) {
+    AffineTransform result = null;
+    int pos = 0;
+    while (true) {
+      final int open = text.indexOf('(', pos);
+      if (open < 0) break;
+      final int close = text.indexOf(')', open);
+      if (close < 0) throw new IllegalArgumentException("Unterminated transform: " + text);
+
+      final String name = text.substring(pos, open).replace(',', ' ').trim();
+      final float[] a = parseNumbers(text.substring(open + 1, close));
+      final AffineTransform transform;
+      if ("matrix".equals(name) && a.length == 6) {
+        transform = new AffineTransform(a[0], a[1], a[2], a[3], a[4], a[5]);
+      }
+      else if ("translate".equals(name) && (a.length == 1 || a.length == 2)) {
+        transform = AffineTransform.getTranslateInstance(a[0], a.length == 2 ? a[1] : 0);
+      }
+      else if ("scale".equals(name) && (a.length == 1 || a.length == 2)) {
+        transform = AffineTransform.getScaleInstance(a[0], a.length == 2 ? a[1] : a[0]);
+      }
+      else if ("rotate".equals(name) && (a.length == 1 || a.length == 3)) {
+        transform = a.length == 3 ? AffineTransform.getRotateInstance(Math.toRadians(a[0]), a[1], a[2])
+                                  : AffineTransform.getRotateInstance(Math.toRadians(a[0]));
+      }
+      else if ("skewX".equals(name) && a.length == 1) {
+        transform = AffineTransform.getShearInstance(Math.tan(Math.toRadians(a[0])), 0);
+      }
+      else if ("skewY".equals(name) && a.length == 1) {
+        transform = AffineTransform.getShearInstance(0, Math.tan(Math.toRadians(a[0])));
+      }
+      else {
+        throw new IllegalArgumentException("Unsupported transform: " + text);
+      }
+
+      if (result == null) {
+        result = transform;
+      }
+      else {
+        result.concatenate(transform);
+      }
+      pos = close + 1;
+    }
+    return result;
+  }
+
+  /**
+   * Appends an SVG elliptical arc, converting its endpoint parameterization to the center one used by {@link Arc2D}.
+   */
+  private static void arcTo(@NotNull Path2D path, float x0, float y0, float rx, float ry, float angle,
+                            boolean largeArc, boolean sweep, float x, float y) {
+    if (x0 == x && y0 == y) return;
+    if (rx == 0 || ry == 0) {
+      path.lineTo(x, y);
+      return;
+    }
+
+    double radiusX = Math.abs(rx);
+    double radiusY = Math.abs(ry);
+    final double theta = Math.toRadians(angle % 360);
+    final double cos = Math.cos(theta);
+    final double sin = Math.sin(theta);
+
+    // midpoint between the ends, in the coordinate system of the ellipse
+    final double dx2 = (x0 - x) / 2.0;
+    final double dy2 = (y0 - y) / 2.0;
+    final double x1 = cos * dx2 + sin * dy2;
+    final double y1 = -sin * dx2 + cos * dy2;
+
+    // scale the radii up if they are too small to reach the end point
+    final double radiiCheck = (x1 * x1) / (radiusX * radiusX) + (y1 * y1) / (radiusY * radiusY);
+    if (radiiCheck > 1) {
+      radiusX *= Math.sqrt(radiiCheck);
+      radiusY *= Math.sqrt(radiiCheck);
+    }
+    final double rx2 = radiusX * radiusX;
+    final double ry2 = radiusY * radiusY;
+
+    final double numerator = rx2 * ry2 - rx2 * y1 * y1 - ry2 * x1 * x1;
+    final double denominator = rx2 * y1 * y1 + ry2 * x1 * x1;
+    final double coefficient = (largeArc == sweep ? -1 : 1) * Math.sqrt(Math.max(0, numerator / denominator));
+    final double cx1 = coefficient * (radiusX * y1 / radiusY);
+    final double cy1 = coefficient * -(radiusY * x1 / radiusX);
+    final double cx = (x0 + x) / 2.0 + (cos * cx1 - sin * cy1);
+    final double cy = (y0 + y) / 2.0 + (sin * cx1 + cos * cy1);
+
+    final double ux = (x1 - cx1) / radiusX;
+    final double uy = (y1 - cy1) / radiusY;
+    final double vx = (-x1 - cx1) / radiusX;
+    final double vy = (-y1 - cy1) / radiusY;
+    final double start = Math.toDegrees(angleBetween(1, 0, ux, uy));
+    double extent = Math.toDegrees(angleBetween(ux, uy, vx, vy));
+    if (!sweep && extent > 0) {
+      extent -= 360;
+    }
+    else if (sweep && extent < 0) {
+      extent += 360;
+    }
+
+    // Arc2D angles grow counterclockwise in a y-up system
+    final Arc2D arc = new Arc2D.Double(cx - radiusX, cy - radiusY, 2 * radiusX, 2 * radiusY, -start, -extent, Arc2D.OPEN);
+    path.append(AffineTransform.getRotateInstance(theta, cx, cy).createTransformedShape(arc), true);
+  }
+
+  private static double angleBetween(double ux, double uy, double vx, double vy) {
+    final double cos = (ux * vx + uy * vy) / Math.sqrt((ux * ux + uy * uy) * (vx * vx + vy * vy));
+    final double angle = Math.acos(Math.max(-1, Math.min(1, cos)));
+    return ux * vy - uy * vx < 0 ? -angle : angle;
+  }
+
+  private boolean atEnd() {
+    return myPos >= myText.length();
+  }
+
+  private char peek() {
+    return myText.charAt(myPos);
+  }
+
+  private void skipSeparators() {
+    while (!atEnd() && (Character.isWhitespace(peek()) || peek() == ',')) {
+      myPos++;
+    }
+  }
+
+  private boolean nextFlag() {
+    skipSeparators();
+    if (!atEnd() && (peek() == '0' || peek() == '1')) {
+      return myText.charAt(myPos++) == '1';
+    }
+    throw new IllegalArgumentException("Flag expected at " + myPos + ": " + myText);
+  }
+
+  private float nextNumber() {
+    skipSeparators();
+    final int start = myPos;
+    if (!atEnd() && (peek() == '-' || peek() == '+')) myPos++;
+    boolean digits = false;
+    boolean dot = false;
+    while (!atEnd()) {
+      final char c = peek();
+      if (c >= '0' && c <= '9') {
+        digits = true;
+      }
+      else if (c == '.' && !dot) {
+        dot = true;
+      }
+      else {
+        break;
+      }
+      myPos++;
+    }
+    if (!digits) {
+      throw new IllegalArgumentException("Number expected at " + start + ": " + myText);
+    }
+    if (!atEnd() && (peek() == 'e' || peek() == 'E')) {
+      final int exponent = myPos;
+      myPos++;
+      if (!atEnd() && (peek() == '-' || peek() == '+')) myPos++;
+      final int exponentDigits = myPos;
+      while (!atEnd() && peek() >= '0' && peek() <= '9') myPos++;
+      if (myPos == exponentDigits) {
+        // not an exponent after all
+        myPos = exponent;
+      }
+    }
+    return Float.parseFloat(myText.substring(start, myPos));
+  }
+}
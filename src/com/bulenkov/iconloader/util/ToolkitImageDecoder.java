@@ -0,0 +1,69 @@
+/*
+ * Copyright 2000-2016 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bulenkov.iconloader.util;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.awt.*;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Decodes images with {@link Toolkit#createImage(byte[], int, int)} and waits for
+ * the AWT image fetcher to finish with a {@link MediaTracker}.
+ */
+public class ToolkitImageDecoder implements ImageDecoder {
+  @Nullable
+  @Override
+  public Image decode(@NotNull ByteBuffer data) throws IOException {
+    final Image image;
+    if (data.hasArray()) {
+      image = Toolkit.getDefaultToolkit().createImage(data.array(), data.arrayOffset() + data.position(), data.remaining());
+    }
+    else {
+      final byte[] bytes = new byte[data.remaining()];
+      data.duplicate().get(bytes);
+      image = Toolkit.getDefaultToolkit().createImage(bytes);
+    }
+
+    if (!waitForImage(image) && Thread.currentThread().isInterrupted()) {
+      // the decoding was cancelled before the image was complete
+      return null;
+    }
+
+    return image;
+  }
+
+  private static boolean waitForImage(Image image) {
+    if (image == null) return false;
+    if (image.getWidth(null) > 0) return true;
+    MediaTracker mediatracker = new MediaTracker(ImageLoader.getComponent());
+    mediatracker.addImage(image, 1);
+    try {
+      mediatracker.waitForID(1, 5000);
+    }
+    catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+    if (!mediatracker.checkID(1)) {
+      ImageLoader.trackerTimedOut();
+    }
+    return !mediatracker.isErrorID(1);
+  }
+}
@@ -17,11 +17,16 @@
 package com.bulenkov.iconloader.util;
 
 import com.bulenkov.iconloader.JBHiDPIScaledImage;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import javax.swing.*;
 import java.awt.*;
+import java.awt.geom.AffineTransform;
 import java.awt.image.ImageObserver;
 import java.lang.reflect.Field;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
@@ -35,55 +40,184 @@ public class UIUtil {
     return UIManager.getLookAndFeel().getName().equals("Darcula");
   }
 
+  /**
+   * Paints the image at the given position. A {@link JBHiDPIScaledImage} is painted at its logical size by
+   * temporarily removing the scale from the graphics transform and copying the pixels unscaled,
+   * which allocates nothing once warmed up, unlike {@link Graphics#create()} or the scaling {@code drawImage} overloads.
+   */
   public static void drawImage(Graphics g, Image image, int x, int y, ImageObserver observer) {
     if (image instanceof JBHiDPIScaledImage) {
-      final Graphics2D newG = (Graphics2D) g.create(x, y, image.getWidth(observer), image.getHeight(observer));
-      newG.scale(0.5, 0.5);
-      Image img = ((JBHiDPIScaledImage) image).getDelegate();
+      final JBHiDPIScaledImage hidpi = (JBHiDPIScaledImage) image;
+      Image img = hidpi.getDelegate();
       if (img == null) {
-        img = image;
+        img = hidpi.getBuffer();
       }
-      newG.drawImage(img, 0, 0, observer);
-      newG.scale(1, 1);
-      newG.dispose();
+      if (!(g instanceof Graphics2D)) {
+        g.drawImage(img, x, y, hidpi.getWidth(), hidpi.getHeight(), observer);
+        return;
+      }
+
+      drawImage((Graphics2D) g, hidpi, img, x, y, observer);
     } else {
       g.drawImage(image, x, y, observer);
     }
   }
 
+  private static void drawImage(Graphics2D g, JBHiDPIScaledImage hidpi, Image img, int x, int y, ImageObserver observer) {
+    // kept small, so the JIT can inline it and eliminate the transform copy
+    final AffineTransform transform = g.getTransform();
+    try {
+      final double deviceScale = getDeviceScale(transform);
+      final Image pixels = deviceScale > 0 ? hidpi.getScaledDelegate(deviceScale) : null;
+      if (pixels != null) {
+        // the pixels match the device size, so they are copied 1:1 without interpolation
+        g.scale(1 / deviceScale, 1 / deviceScale);
+        g.drawImage(pixels, (int) Math.round(x * deviceScale), (int) Math.round(y * deviceScale), observer);
+      } else {
+        final double scale = hidpi.getScale();
+        g.translate(x, y);
+        g.scale(1 / scale, 1 / scale);
+        g.drawImage(img, 0, 0, observer);
+      }
+    } finally {
+      g.setTransform(transform);
+    }
+  }
+
+  /**
+   * @return the uniform scale of the transform, 0 if the transform also rotates, shears or flips
+   */
+  private static double getDeviceScale(AffineTransform transform) {
+    if ((transform.getType() & ~(AffineTransform.TYPE_TRANSLATION | AffineTransform.TYPE_UNIFORM_SCALE)) != 0) {
+      return 0;
+    }
+    return transform.getScaleX();
+  }
+
   private static boolean isMac() {
     return System.getProperty("os.name").toLowerCase().startsWith("mac");
   }
 
-  private static AtomicBoolean ourRetina = isMac() ? null : new AtomicBoolean(false);
-
-  public static synchronized  boolean isRetina() {
-      if (ourRetina == null) {
-        ourRetina = new AtomicBoolean();
-        ourRetina.set(false); // in case HiDPIScaledImage.drawIntoImage is not called for some reason
-
-          GraphicsEnvironment env = GraphicsEnvironment.getLocalGraphicsEnvironment();
-          final GraphicsDevice device = env.getDefaultScreenDevice();
-          try {
-            Field field = device.getClass().getDeclaredField("scale");
-            if (field != null) {
-              field.setAccessible(true);
-              Object scale = field.get(device);
-              if (scale instanceof Integer && (Integer) scale == 2) {
-                ourRetina.set(true);
-                return true;
-              }
-            }
-          } catch (Exception ignore) {
-          }
-        ourRetina.set(false);
+  // replaced on display changes, but never set to a new value in place except by tests
+  private static volatile AtomicBoolean ourRetina = isMac() ? null : new AtomicBoolean(false);
+
+  private static final ConcurrentMap<GraphicsDevice, DeviceScale> ourDeviceScales = new ConcurrentHashMap<GraphicsDevice, DeviceScale>();
+
+  public static boolean isRetina() {
+    AtomicBoolean retina = ourRetina;
+    if (retina == null) {
+      // racing threads detect the same value, so there is no need to lock
+      retina = new AtomicBoolean(!GraphicsEnvironment.isHeadless() &&
+                                 getScaleField(GraphicsEnvironment.getLocalGraphicsEnvironment().getDefaultScreenDevice()) == 2);
+      ourRetina = retina;
+    }
+    return retina.get();
+  }
+
+  /**
+   * @return 2 on Retina, otherwise the scale of the default screen device, e.g. 1.5 on a 150% display
+   */
+  public static float getScaleFactor() {
+    if (isRetina()) {
+      return 2;
+    }
+    return GraphicsEnvironment.isHeadless()
+           ? 1 : getScaleFactor(GraphicsEnvironment.getLocalGraphicsEnvironment().getDefaultScreenDevice());
+  }
+
+  /**
+   * @return scale of the screen the configuration belongs to, or the {@linkplain #getScaleFactor() default scale}
+   *         if it belongs to an image or a printer
+   */
+  public static float getScaleFactor(@Nullable GraphicsConfiguration configuration) {
+    if (configuration == null) {
+      return getScaleFactor();
+    }
+    final GraphicsDevice device = configuration.getDevice();
+    if (device.getType() != GraphicsDevice.TYPE_RASTER_SCREEN) {
+      return getScaleFactor();
+    }
+    return getScaleFactor(device);
+  }
+
+  /**
+   * @return scale of the screen device, detected once and cached while the device keeps its default configuration
+   */
+  public static float getScaleFactor(@NotNull GraphicsDevice device) {
+    // the graphics environment replaces the configurations of a device when its display mode changes
+    final GraphicsConfiguration configuration = device.getDefaultConfiguration();
+    DeviceScale scale = ourDeviceScales.get(device);
+    if (scale == null || scale.myConfiguration != configuration) {
+      scale = new DeviceScale(configuration, detectScaleFactor(device));
+      ourDeviceScales.put(device, scale);
+    }
+    return scale.myScale;
+  }
+
+  /**
+   * @return true if screens are known to paint at the scale: 1, the scale of a detected screen device,
+   *         or a scale icon variants are provided for
+   */
+  public static boolean isKnownScale(double scale) {
+    if (scale == 1 || scale == getScaleFactor()) return true;
+    for (DeviceScale deviceScale : ourDeviceScales.values()) {
+      if (deviceScale.myScale == scale) return true;
+    }
+    return ImageLoader.isVariantScale(scale);
+  }
+
+  /**
+   * Forgets the detected scale factors. Scales of screen devices are detected again when their default
+   * configuration changes, but a display change which keeps the configuration objects is not noticed:
+   * this should be called after the displays have been reconfigured.
+   */
+  public static void resetScaleFactor() {
+    ourDeviceScales.clear();
+    if (isMac()) {
+      ourRetina = null;
+    }
+  }
+
+  private static float detectScaleFactor(@NotNull GraphicsDevice device) {
+    float scale = 1;
+    try {
+      final AffineTransform transform = device.getDefaultConfiguration().getDefaultTransform();
+      if (transform.getScaleX() > 0) {
+        scale = (float) transform.getScaleX();
       }
+    } catch (Exception ignore) {
+    }
+    return Math.max(scale, getScaleField(device));
+  }
 
-      return ourRetina.get();
+  /**
+   * @return value of the private {@code scale} field of Mac screen devices, 0 if there is none
+   */
+  private static int getScaleField(@NotNull GraphicsDevice device) {
+    try {
+      Field field = device.getClass().getDeclaredField("scale");
+      field.setAccessible(true);
+      Object scale = field.get(device);
+      if (scale instanceof Integer) {
+        return (Integer) scale;
+      }
+    } catch (Exception ignore) {
+    }
+    return 0;
+  }
+
+  private static final class DeviceScale {
+    private final GraphicsConfiguration myConfiguration;
+    private final float myScale;
+
+    private DeviceScale(GraphicsConfiguration configuration, float scale) {
+      myConfiguration = configuration;
+      myScale = scale;
+    }
   }
 
-  private static final GrayFilter DEFAULT_GRAY_FILTER = new GrayFilter(true, 65);
-  private static final GrayFilter DARCULA_GRAY_FILTER = new GrayFilter(true, 30);
+  private static final GrayFilter DEFAULT_GRAY_FILTER = new JBGrayFilter(true, 65);
+  private static final GrayFilter DARCULA_GRAY_FILTER = new JBGrayFilter(true, 30);
 
   public static GrayFilter getGrayFilter() {
     return isUnderDarcula() ? DARCULA_GRAY_FILTER : DEFAULT_GRAY_FILTER;
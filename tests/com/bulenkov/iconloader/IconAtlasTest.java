@@ -0,0 +1,134 @@
+/*
+ * Copyright 2000-2016 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bulenkov.iconloader;
+
+import javax.swing.*;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+
+public class IconAtlasTest extends IconLoaderTestCase {
+  public void testPacksIconsIntoSharedPages() throws Exception {
+    final IconAtlas atlas = new IconAtlas(64, 16);
+    for (int i = 0; i < 20; i++) {
+      assertNotNull(atlas.put("icon" + i, createImage(16, new Color(i, 0, 0))));
+    }
+    assertEquals(20, atlas.getIconCount());
+    // 3x3 padded 16px icons fit a 64px page
+    assertEquals(3, atlas.getPageCount());
+    assertNull(atlas.put("large", createImage(32, Color.RED)));
+
+    final Icon icon = atlas.get("icon7");
+    assertEquals(16, icon.getIconWidth());
+    @SuppressWarnings("UndesirableClassUsage")
+    final BufferedImage target = new BufferedImage(20, 20, BufferedImage.TYPE_INT_ARGB);
+    final Graphics2D g = target.createGraphics();
+    icon.paintIcon(null, g, 2, 2);
+    g.dispose();
+    assertEquals(0, target.getRGB(1, 1));
+    assertEquals(new Color(7, 0, 0).getRGB(), target.getRGB(2, 2));
+    assertEquals(new Color(7, 0, 0).getRGB(), target.getRGB(17, 17));
+    assertEquals(0, target.getRGB(18, 18));
+  }
+
+  public void testIconsAreIndexedById() throws Exception {
+    final IconAtlas atlas = new IconAtlas(128, 16);
+    final Icon[] icons = new Icon[300];
+    for (int i = 0; i < icons.length; i++) {
+      icons[i] = atlas.put("icon" + i, createImage(8 + i % 8, new Color(i % 256, 0, 0)));
+      assertNotNull(icons[i]);
+    }
+    assertEquals(icons.length, atlas.getIconCount());
+    for (int i = 0; i < icons.length; i++) {
+      final int id = atlas.getId("icon" + i);
+      assertEquals(i, id);
+      assertSame(icons[i], atlas.getIcon(id));
+      assertSame(icons[i], atlas.get("icon" + i));
+      assertEquals(8 + i % 8, icons[i].getIconWidth());
+    }
+    assertEquals(-1, atlas.getId("missing"));
+
+    atlas.clear();
+    assertNull(atlas.get("icon1"));
+    assertEquals(0, atlas.getPageCount());
+    // icons handed out before keep working
+    assertEquals(9, icons[1].getIconHeight());
+  }
+
+  public void testPageCountIsBounded() throws Exception {
+    final IconAtlas atlas = new IconAtlas(32, 16, 2);
+    assertNotNull(atlas.put("icon0", createImage(16, Color.RED)));
+    assertNotNull(atlas.put("icon1", createImage(16, Color.RED)));
+    assertNull(atlas.put("icon2", createImage(16, Color.RED)));
+    assertEquals(2, atlas.getPageCount());
+    assertEquals(2, atlas.getIconCount());
+  }
+
+  public void testGetIconInAtlasMode() throws Exception {
+    setRetina(false);
+    final IconCache oldCache = IconLoader.getIconCache();
+    final IconCache cache = new IconCache(16, 1024 * 1024, IconCache.ValueType.STRONG);
+    IconLoader.setIconCache(cache);
+    IconLoader.setIconAtlas(new IconAtlas());
+    try {
+      final Icon icon = IconLoader.getIcon(getClass().getResource("/icons/print.png"));
+      assertNotNull(icon);
+      assertSame(icon, IconLoader.getIcon(getClass().getResource("/icons/print.png")));
+      assertEquals(1, IconLoader.getIconAtlas().getPageCount());
+      // the atlas holds the only copy of the pixels
+      assertEquals(0, cache.size());
+    }
+    finally {
+      IconLoader.setIconAtlas(null);
+      IconLoader.setIconCache(oldCache);
+    }
+  }
+
+  public void testLazyIconIsPackedOnPaint() throws Exception {
+    setRetina(false);
+    final IconCache oldCache = IconLoader.getIconCache();
+    IconLoader.setIconCache(null);
+    final IconAtlas atlas = new IconAtlas();
+    IconLoader.setIconAtlas(atlas);
+    IconLoader.setLazyLoading(true);
+    try {
+      final Icon icon = IconLoader.getIcon(getClass().getResource("/icons/print.png"));
+      assertTrue(icon instanceof LazyIcon);
+      assertEquals(0, atlas.getIconCount());
+      @SuppressWarnings("UndesirableClassUsage")
+      final BufferedImage target = new BufferedImage(icon.getIconWidth(), icon.getIconHeight(), BufferedImage.TYPE_INT_ARGB);
+      final Graphics2D g = target.createGraphics();
+      icon.paintIcon(null, g, 0, 0);
+      g.dispose();
+      assertEquals(1, atlas.getIconCount());
+    }
+    finally {
+      IconLoader.setLazyLoading(false);
+      IconLoader.setIconAtlas(null);
+      IconLoader.setIconCache(oldCache);
+    }
+  }
+
+  private static Image createImage(int size, Color color) {
+    @SuppressWarnings("UndesirableClassUsage")
+    final BufferedImage image = new BufferedImage(size, size, BufferedImage.TYPE_INT_ARGB);
+    final Graphics2D g = image.createGraphics();
+    g.setColor(color);
+    g.fillRect(0, 0, size, size);
+    g.dispose();
+    return image;
+  }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright 2000-2016 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bulenkov.iconloader;
+
+import javax.swing.*;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.net.URL;
+
+public class IconBundleTest extends IconLoaderTestCase {
+  public void testCompileAndLoad() throws Exception {
+    final URL url = getClass().getResource("/icons/print.png");
+    final File directory = new File(url.toURI()).getParentFile().getParentFile();
+    final File file = File.createTempFile("icons", ".bundle");
+    try {
+      assertTrue(IconBundleCompiler.compile(directory, file) >= 2);
+
+      final IconBundle bundle = IconBundle.open(file, directory.toURI().toURL());
+      assertEquals("icons/print.png", bundle.findPath(url));
+      assertNull(bundle.findPath(new URL("file:/somewhere/else.png")));
+      // only icons below the root are served, not any path ending the same way
+      assertNull(bundle.findPath(new URL(url, "../../elsewhere/icons/print.png")));
+      assertEquals(new Dimension(32, 32), bundle.getImageSize("icons/print.png", 2));
+
+      final IconBundle jarBundle = IconBundle.open(file);
+      assertNull(jarBundle.findPath(url));
+      assertEquals("icons/print.png", jarBundle.findPath(new URL("jar:file:/my%20icons.jar!/icons/print.png")));
+
+      final BufferedImage image = bundle.getImage("icons/print.png", 1);
+      assertNotNull(image);
+      assertEquals(16, image.getWidth());
+      final BufferedImage retinaImage = bundle.getImage("icons/print.png", 2);
+      assertNotNull(retinaImage);
+      assertEquals(32, retinaImage.getWidth());
+      assertNull(bundle.getImage("icons/print.png", 3));
+
+      final BufferedImage expected = toImage(IconLoader.loadIcon(url, 1));
+      assertEquals(expected.getRGB(8, 8), image.getRGB(8, 8));
+    }
+    finally {
+      //noinspection ResultOfMethodCallIgnored
+      file.delete();
+    }
+  }
+
+  public void testGetIconUsesBundle() throws Exception {
+    final URL url = getClass().getResource("/icons/print.png");
+    final File directory = new File(url.toURI()).getParentFile().getParentFile();
+    final File file = File.createTempFile("icons", ".bundle");
+    final IconCache oldCache = IconLoader.getIconCache();
+    IconLoader.setIconCache(null);
+    try {
+      IconBundleCompiler.compile(directory, file);
+      // the bundle should be used even if the original resource is gone
+      final URL root = new URL(url, "../moved%20dir/");
+      final URL missing = new URL(root, "icons/print.png");
+      final IconBundle bundle = IconBundle.open(file, root);
+      setRetina(false);
+      assertNull(IconLoader.getIcon(missing));
+
+      IconLoader.addBundle(bundle);
+      try {
+        final Icon icon = IconLoader.getIcon(missing);
+        assertNotNull(icon);
+        assertEquals(16, icon.getIconWidth());
+
+        // the size comes from the bundle, the missing resource is never read
+        IconLoader.setLazyLoading(true);
+        try {
+          final Icon lazyIcon = IconLoader.getIcon(missing);
+          assertTrue(lazyIcon instanceof LazyIcon);
+          assertEquals(16, lazyIcon.getIconWidth());
+        }
+        finally {
+          IconLoader.setLazyLoading(false);
+        }
+      }
+      finally {
+        IconLoader.removeBundle(bundle);
+      }
+    }
+    finally {
+      IconLoader.setIconCache(oldCache);
+      //noinspection ResultOfMethodCallIgnored
+      file.delete();
+    }
+  }
+
+  private static BufferedImage toImage(Icon icon) {
+    final BufferedImage image = new BufferedImage(icon.getIconWidth(), icon.getIconHeight(), BufferedImage.TYPE_INT_ARGB);
+    icon.paintIcon(null, image.getGraphics(), 0, 0);
+    return image;
+  }
+}
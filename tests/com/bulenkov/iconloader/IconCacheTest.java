@@ -0,0 +1,154 @@
+/*
+ * Copyright 2000-2016 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bulenkov.iconloader;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.lang.ref.WeakReference;
+import java.net.URL;
+
+public class IconCacheTest extends IconLoaderTestCase {
+  public void testHitAndMiss() throws Exception {
+    final IconCache cache = new IconCache(16, 1024 * 1024, IconCache.ValueType.STRONG);
+    final URL url = getClass().getResource("/icons/print.png");
+    final BufferedImage image = new BufferedImage(16, 16, BufferedImage.TYPE_INT_ARGB);
+
+    assertNull(cache.get(url, false, null));
+    cache.put(url, false, null, image);
+    assertSame(image, cache.get(url, false, null));
+    assertNull(cache.get(url, true, null));
+
+    assertEquals(1, cache.getHitCount());
+    assertEquals(2, cache.getMissCount());
+    assertEquals(16 * 16 * 4, cache.getByteSize());
+  }
+
+  public void testEvictsByByteBudget() throws Exception {
+    // 16 segments with a budget of two 16x16 images each
+    final IconCache cache = new IconCache(1024, 16 * 2 * 16 * 16 * 4, IconCache.ValueType.STRONG);
+    for (int i = 0; i < 200; i++) {
+      cache.put(new URL("file:/icons/icon" + i + ".png"), false, null, new BufferedImage(16, 16, BufferedImage.TYPE_INT_ARGB));
+    }
+    assertTrue(cache.size() <= 32);
+    assertEquals(200 - cache.size(), cache.getEvictionCount());
+  }
+
+  public void testCachesImageLargerThanSegmentShare() throws Exception {
+    // a segment's share is a single 16x16 image
+    final IconCache cache = new IconCache(1024, 16 * 16 * 16 * 4, IconCache.ValueType.STRONG);
+    final URL url = getClass().getResource("/icons/print.png");
+    final BufferedImage large = new BufferedImage(32, 32, BufferedImage.TYPE_INT_ARGB);
+    cache.put(url, 1, null, large);
+    assertSame(large, cache.get(url, 1, null));
+    assertEquals(32 * 32 * 4, cache.getByteSize());
+
+    // larger than the whole budget
+    cache.put(url, 2, null, new BufferedImage(128, 128, BufferedImage.TYPE_INT_ARGB));
+    assertNull(cache.get(url, 2, null));
+    assertEquals(32 * 32 * 4, cache.getByteSize());
+  }
+
+  public void testOffHeapValues() throws Exception {
+    final IconCache cache = new IconCache(1024, 16 * 4 * 32 * 32 * 4, IconCache.ValueType.OFF_HEAP);
+    final URL url = getClass().getResource("/icons/print.png");
+    @SuppressWarnings("UndesirableClassUsage")
+    final BufferedImage image = new BufferedImage(16, 16, BufferedImage.TYPE_INT_ARGB);
+    image.setRGB(3, 4, 0x80ff0000);
+    cache.put(url, 1, null, image);
+    assertEquals(16 * 16 * 4, cache.getOffHeapBytes());
+
+    // the image is returned as long as it is used elsewhere, rather than a copy per hit
+    assertSame(image, cache.get(url, 1, null));
+
+    @SuppressWarnings("UndesirableClassUsage")
+    final BufferedImage pixels = new BufferedImage(32, 32, BufferedImage.TYPE_INT_ARGB_PRE);
+    cache.put(url, 2, null, new JBHiDPIScaledImage(pixels, 16, 16, BufferedImage.TYPE_INT_ARGB, 2));
+    final Image hidpi = cache.get(url, 2, null);
+    assertTrue(hidpi instanceof JBHiDPIScaledImage);
+    assertEquals(16, hidpi.getWidth(null));
+    assertEquals(32, ((JBHiDPIScaledImage)hidpi).getDelegate().getWidth(null));
+    assertEquals(16 * 16 * 4 + 32 * 32 * 4, cache.getOffHeapBytes());
+
+    // evicted blocks are reused
+    for (int i = 0; i < 200; i++) {
+      cache.put(new URL("file:/icons/icon" + i + ".png"), 2, null, new BufferedImage(32, 32, BufferedImage.TYPE_INT_ARGB));
+    }
+    assertEquals(cache.getByteSize(), cache.getOffHeapBytes());
+    // far less than the 800 KB of all images put
+    assertTrue(cache.getOffHeapReservedBytes() <= 3 * 256 * 1024);
+
+    cache.clear();
+    assertEquals(0, cache.getOffHeapBytes());
+  }
+
+  public void testOffHeapValueLargerThanSlab() throws Exception {
+    final IconCache cache = new IconCache(16, 4 * 1024 * 1024, IconCache.ValueType.OFF_HEAP);
+    final URL url = getClass().getResource("/icons/print.png");
+    @SuppressWarnings("UndesirableClassUsage")
+    final BufferedImage image = new BufferedImage(300, 300, BufferedImage.TYPE_INT_ARGB_PRE);
+    cache.put(url, 1, null, image);
+    // a buffer of its own, not rounded up to a power of two
+    assertEquals(300 * 300 * 4, cache.getOffHeapBytes());
+    assertEquals(300 * 300 * 4, cache.getOffHeapReservedBytes());
+
+    cache.clear();
+    assertEquals(0, cache.getOffHeapBytes());
+    assertEquals(0, cache.getOffHeapReservedBytes());
+  }
+
+  public void testOffHeapHitsShareImage() throws Exception {
+    final IconCache cache = new IconCache(16, 1024 * 1024, IconCache.ValueType.OFF_HEAP);
+    final URL url = getClass().getResource("/icons/print.png");
+    final WeakReference<Image> original = putImage(cache, url);
+    for (int i = 0; i < 100 && original.get() != null; i++) {
+      System.gc();
+      Thread.sleep(10);
+    }
+    assertNull("the image put into the cache wasn't collected", original.get());
+
+    final Image cached = cache.get(url, 1, null);
+    assertTrue(cached instanceof BufferedImage);
+    assertEquals(0x80, ((BufferedImage)cached).getRGB(3, 4) >>> 24);
+    assertEquals(0, ((BufferedImage)cached).getRGB(0, 0));
+    assertSame(cached, cache.get(url, 1, null));
+  }
+
+  public void testGetIconUsesCache() throws Exception {
+    final IconCache old = IconLoader.getIconCache();
+    final IconCache cache = new IconCache(16, 1024 * 1024, IconCache.ValueType.STRONG);
+    IconLoader.setIconCache(cache);
+    try {
+      setRetina(false);
+      final URL url = getClass().getResource("/icons/print.png");
+      assertNotNull(IconLoader.getIcon(url));
+      assertNotNull(IconLoader.getIcon(url));
+      assertEquals(1, cache.getMissCount());
+      assertEquals(1, cache.getHitCount());
+    }
+    finally {
+      IconLoader.setIconCache(old);
+    }
+  }
+
+  private static WeakReference<Image> putImage(IconCache cache, URL url) {
+    @SuppressWarnings("UndesirableClassUsage")
+    final BufferedImage image = new BufferedImage(16, 16, BufferedImage.TYPE_INT_ARGB);
+    image.setRGB(3, 4, 0x80ff0000);
+    cache.put(url, 1, null, image);
+    return new WeakReference<Image>(image);
+  }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright 2000-2016 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bulenkov.iconloader;
+
+import com.bulenkov.iconloader.util.ImageLoadListener;
+import com.bulenkov.iconloader.util.ImageLoader;
+
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.net.URL;
+
+public class IconLoadStatisticsTest extends IconLoaderTestCase {
+  public void testCollectsPhasesAndVariants() throws Exception {
+    final IconLoadStatistics statistics = IconLoadStatistics.install();
+    try {
+      assertTrue(ManagementFactory.getPlatformMBeanServer().isRegistered(new ObjectName(IconLoadStatistics.OBJECT_NAME)));
+
+      final URL url = getClass().getResource("/icons/print.png");
+      assertNotNull(ImageLoader.loadFromUrl(url, 2, null));
+      assertNotNull(ImageLoader.loadFromUrl(new URL(url, "printPreview.png"), 2, null));
+
+      assertEquals(2, statistics.getLoadCount());
+      assertEquals(0, statistics.getFailureCount());
+      assertEquals(1, statistics.getVariantHits());
+      assertTrue(statistics.getVariantMisses() > 0);
+      assertTrue(statistics.getDecodedBytes() > 0);
+      assertEquals(2, statistics.getSlowestImages().length);
+      assertTrue(statistics.getSlowestImages()[0].contains(".png"));
+
+      statistics.reset();
+      assertEquals(0, statistics.getLoadCount());
+      assertEquals(0, statistics.getSlowestImages().length);
+    }
+    finally {
+      IconLoadStatistics.uninstall();
+    }
+    assertFalse(ManagementFactory.getPlatformMBeanServer().isRegistered(new ObjectName(IconLoadStatistics.OBJECT_NAME)));
+  }
+
+  public void testKeepsSlowestImages() throws Exception {
+    final IconLoadStatistics statistics = new IconLoadStatistics(2);
+    statistics.imageLoaded("a.png", true, 3000000, 0);
+    statistics.imageLoaded("b.png", true, 1000000, 0);
+    statistics.imageLoaded("c.png", true, 2000000, 0);
+    statistics.imageLoaded("d.png", false, 9000000, 0);
+    statistics.phaseFinished("a.png", ImageLoadListener.Phase.DECODE, 5000000);
+
+    final String[] slowest = statistics.getSlowestImages();
+    assertEquals(2, slowest.length);
+    assertTrue(slowest[0].endsWith("a.png"));
+    assertTrue(slowest[1].endsWith("c.png"));
+    assertEquals(1, statistics.getFailureCount());
+    assertEquals(5, statistics.getDecodeTimeMillis());
+  }
+}
@@ -16,6 +16,40 @@
 
 package com.bulenkov.iconloader;
 
+import com.bulenkov.iconloader.util.ImageDecoder;
+import com.bulenkov.iconloader.util.ImageIODecoder;
+import com.bulenkov.iconloader.util.ImageLoader;
+import com.bulenkov.iconloader.util.ImmutableImageIcon;
+import com.bulenkov.iconloader.util.JBImageIcon;
+import com.bulenkov.iconloader.util.UIUtil;
+
+import javax.imageio.ImageIO;
+import javax.swing.*;
+import javax.swing.plaf.metal.MetalLookAndFeel;
+import java.awt.*;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.awt.image.ImageObserver;
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
 /**
  * @author Konstantin Bulenkov
  */
@@ -32,4 +66,565 @@ public class IconLoaderTest extends IconLoaderTestCase {
     checkIcon("/icons/printPreview.png", true, "printPreview.png");
   }
 
+  public void testRetinaImagePaintsDelegate() throws Exception {
+    @SuppressWarnings("UndesirableClassUsage")
+    final BufferedImage raw = new BufferedImage(32, 32, BufferedImage.TYPE_INT_ARGB);
+    final Graphics2D rawGraphics = raw.createGraphics();
+    rawGraphics.setColor(Color.RED);
+    rawGraphics.fillRect(0, 0, 32, 32);
+    rawGraphics.dispose();
+
+    final Image retina = RetinaImage.createFrom(raw, null);
+    assertEquals(16, retina.getWidth(null));
+    assertEquals(16, retina.getHeight(null));
+
+    @SuppressWarnings("UndesirableClassUsage")
+    final BufferedImage target = new BufferedImage(32, 32, BufferedImage.TYPE_INT_ARGB);
+    final Graphics2D g = target.createGraphics();
+    g.scale(2, 2);
+    new JBImageIcon(retina).paintIcon(null, g, 0, 0);
+    g.dispose();
+    assertEquals(Color.RED.getRGB(), target.getRGB(31, 31));
+  }
+
+  public void testRetinaImageIsPrescaledForDevice() throws Exception {
+    @SuppressWarnings("UndesirableClassUsage")
+    final BufferedImage raw = new BufferedImage(32, 32, BufferedImage.TYPE_INT_ARGB);
+    final Graphics2D rawGraphics = raw.createGraphics();
+    rawGraphics.setColor(Color.RED);
+    rawGraphics.fillRect(0, 0, 32, 32);
+    rawGraphics.dispose();
+
+    final JBHiDPIScaledImage retina = (JBHiDPIScaledImage)RetinaImage.createFrom(raw, null);
+    assertSame(raw, retina.getScaledDelegate(2));
+    final Image scaled = retina.getScaledDelegate(1);
+    assertNotNull(scaled);
+    assertEquals(16, scaled.getWidth(null));
+    assertSame(scaled, retina.getScaledDelegate(1));
+    // arbitrary zoom levels are painted through the transform instead of being resampled
+    assertNull(retina.getScaledDelegate(1.37));
+
+    @SuppressWarnings("UndesirableClassUsage")
+    final BufferedImage target = new BufferedImage(16, 16, BufferedImage.TYPE_INT_ARGB);
+    final Graphics2D g = target.createGraphics();
+    new JBImageIcon(retina).paintIcon(null, g, 0, 0);
+    g.dispose();
+    assertEquals(Color.RED.getRGB(), target.getRGB(15, 15));
+  }
+
+  public void testRetinaImageRasterAccessorsUseLogicalSize() throws Exception {
+    @SuppressWarnings("UndesirableClassUsage")
+    final BufferedImage raw = new BufferedImage(32, 32, BufferedImage.TYPE_INT_ARGB);
+    final JBHiDPIScaledImage retina = (JBHiDPIScaledImage)RetinaImage.createFrom(raw, null);
+
+    assertEquals(16, retina.getSampleModel().getWidth());
+    assertEquals(16, retina.getTileWidth());
+    assertEquals(16, retina.getTile(0, 0).getHeight());
+    assertSame(retina.getRaster(), retina.getWritableTile(0, 0));
+
+    @SuppressWarnings("UndesirableClassUsage")
+    final BufferedImage source = new BufferedImage(16, 16, BufferedImage.TYPE_INT_ARGB);
+    source.setRGB(15, 15, Color.RED.getRGB());
+    retina.setData(source.getRaster());
+    assertEquals(Color.RED.getRGB(), retina.getRGB(15, 15));
+  }
+
+  public void testRetinaImagePaintKeepsTransform() throws Exception {
+    @SuppressWarnings("UndesirableClassUsage")
+    final BufferedImage raw = new BufferedImage(32, 32, BufferedImage.TYPE_INT_ARGB);
+    final Graphics2D rawGraphics = raw.createGraphics();
+    rawGraphics.setColor(Color.RED);
+    rawGraphics.fillRect(0, 0, 32, 32);
+    rawGraphics.dispose();
+    final Image retina = RetinaImage.createFrom(raw, null);
+
+    @SuppressWarnings("UndesirableClassUsage")
+    final BufferedImage target = new BufferedImage(64, 64, BufferedImage.TYPE_INT_ARGB);
+    final Graphics2D g = target.createGraphics();
+    g.translate(1, 0);
+    g.scale(2, 2);
+    final AffineTransform transform = g.getTransform();
+    UIUtil.drawImage(g, retina, 3, 5, null);
+    assertEquals(transform, g.getTransform());
+
+    // rotated graphics take the general path
+    g.rotate(Math.PI / 2);
+    final AffineTransform rotated = g.getTransform();
+    UIUtil.drawImage(g, retina, 0, -30, null);
+    assertEquals(rotated, g.getTransform());
+    g.dispose();
+
+    // (3, 5) at scale 2 plus the translation
+    assertEquals(0, target.getRGB(6, 10));
+    assertEquals(Color.RED.getRGB(), target.getRGB(7, 10));
+    assertEquals(Color.RED.getRGB(), target.getRGB(38, 41));
+    assertEquals(0, target.getRGB(39, 42));
+  }
+
+  public void testRetinaImagePaintRestoresTransformOnFailure() throws Exception {
+    @SuppressWarnings("UndesirableClassUsage")
+    final BufferedImage raw = new BufferedImage(32, 32, BufferedImage.TYPE_INT_ARGB);
+    final Image retina = RetinaImage.createFrom(raw, null);
+
+    @SuppressWarnings("UndesirableClassUsage")
+    final BufferedImage target = new BufferedImage(64, 64, BufferedImage.TYPE_INT_ARGB);
+    final Graphics2D g = new HiDPIScaledGraphics(target.createGraphics(), target) {
+      @Override
+      public boolean drawImage(Image img, int x, int y, ImageObserver observer) {
+        throw new IllegalStateException("broken");
+      }
+    };
+    final AffineTransform transform = g.getTransform();
+    try {
+      UIUtil.drawImage(g, retina, 3, 5, null);
+      fail();
+    }
+    catch (IllegalStateException expected) {
+    }
+    assertEquals(transform, g.getTransform());
+    g.dispose();
+  }
+
+  public void testIconLoadsVariantPerScale() throws Exception {
+    setRetina(false);
+    final Icon icon = IconLoader.getIcon(getClass().getResource("/icons/print.png"));
+    assertTrue(icon instanceof ScaledIcon);
+    final ScaledIcon scaled = (ScaledIcon)icon;
+
+    final Icon retina = scaled.getIcon(2);
+    assertNotSame(scaled.getIcon(1), retina);
+    assertSame(retina, scaled.getIcon(2));
+    assertEquals(16, retina.getIconWidth());
+    assertTrue(((ImmutableImageIcon)retina).getImage() instanceof JBHiDPIScaledImage);
+
+    // image buffers have no scale of their own
+    @SuppressWarnings("UndesirableClassUsage")
+    final BufferedImage target = new BufferedImage(16, 16, BufferedImage.TYPE_INT_ARGB);
+    final Graphics2D g = target.createGraphics();
+    assertEquals(UIUtil.getScaleFactor(), UIUtil.getScaleFactor(g.getDeviceConfiguration()));
+    g.dispose();
+  }
+
+  public void testVariantIsLoadedOffThePaintingThread() throws Exception {
+    setRetina(false);
+    final ScaledIcon icon = (ScaledIcon)IconLoader.getIcon(getClass().getResource("/icons/print.png"));
+    final List<Runnable> tasks = new ArrayList<Runnable>();
+    IconLoader.setAsyncExecutor(new Executor() {
+      @Override
+      public void execute(Runnable command) {
+        tasks.add(command);
+      }
+    });
+    try {
+      setRetina(true);
+      @SuppressWarnings("UndesirableClassUsage")
+      final BufferedImage target = new BufferedImage(16, 16, BufferedImage.TYPE_INT_ARGB);
+      final Graphics2D g = target.createGraphics();
+      icon.paintIcon(null, g, 0, 0);
+      icon.paintIcon(null, g, 0, 0);
+      g.dispose();
+      // the 1x image was painted meanwhile, and the variant is loaded once
+      assertTrue(hasPixels(target));
+      assertEquals(1, tasks.size());
+
+      tasks.get(0).run();
+      final Icon retina = icon.getIcon(2);
+      assertTrue(((ImmutableImageIcon)retina).getImage() instanceof JBHiDPIScaledImage);
+    }
+    finally {
+      IconLoader.setAsyncExecutor(null);
+      setRetina(false);
+    }
+  }
+
+  public void testIconPaintsWithoutLocking() throws Exception {
+    setRetina(false);
+    final ScaledIcon icon = (ScaledIcon)IconLoader.getIcon(getClass().getResource("/icons/print.png"));
+    final Icon image = icon.getIcon(UIUtil.getScaleFactor());
+    assertTrue(image instanceof ImmutableImageIcon);
+
+    final AtomicInteger painted = new AtomicInteger();
+    final Thread painter = new Thread() {
+      @Override
+      public void run() {
+        @SuppressWarnings("UndesirableClassUsage")
+        final BufferedImage target = new BufferedImage(16, 16, BufferedImage.TYPE_INT_ARGB);
+        final Graphics2D g = target.createGraphics();
+        icon.paintIcon(null, g, 0, 0);
+        g.dispose();
+        painted.incrementAndGet();
+      }
+    };
+    //noinspection SynchronizationOnLocalVariableOrMethodParameter
+    synchronized (image) {
+      painter.start();
+      painter.join(5000);
+    }
+    assertEquals(1, painted.get());
+  }
+
+  public void testLazyIcon() throws Exception {
+    final IconCache old = IconLoader.getIconCache();
+    IconLoader.setIconCache(new IconCache(16, 1024 * 1024, IconCache.ValueType.STRONG));
+    setRetina(true);
+    IconLoader.setLazyLoading(true);
+    try {
+      final Icon icon = IconLoader.getIcon(getClass().getResource("/icons/print.png"));
+      assertTrue(icon instanceof LazyIcon);
+      assertFalse(((LazyIcon)icon).isLoaded());
+      assertEquals(16, icon.getIconWidth());
+      assertEquals(16, icon.getIconHeight());
+
+      final BufferedImage image = new BufferedImage(16, 16, BufferedImage.TYPE_INT_ARGB);
+      final Graphics2D g = image.createGraphics();
+      icon.paintIcon(null, g, 0, 0);
+      g.dispose();
+      assertTrue(((LazyIcon)icon).isLoaded());
+      assertTrue(image.getRGB(8, 8) != 0);
+    }
+    finally {
+      IconLoader.setLazyLoading(false);
+      IconLoader.setIconCache(old);
+    }
+  }
+
+  public void testAsyncIcon() throws Exception {
+    final IconCache old = IconLoader.getIconCache();
+    IconLoader.setIconCache(new IconCache(16, 1024 * 1024, IconCache.ValueType.STRONG));
+    final List<Runnable> tasks = new ArrayList<Runnable>();
+    IconLoader.setAsyncExecutor(new Executor() {
+      @Override
+      public void execute(Runnable command) {
+        tasks.add(command);
+      }
+    });
+    setRetina(false);
+    try {
+      final Icon icon = IconLoader.getIconAsync(getClass().getResource("/icons/print.png"), null, new Dimension(16, 16));
+      assertTrue(icon instanceof AsyncIcon);
+      assertFalse(((AsyncIcon)icon).isLoaded());
+      assertEquals(16, icon.getIconWidth());
+      assertEquals(16, icon.getIconHeight());
+
+      final AtomicInteger repaints = new AtomicInteger();
+      final JLabel label = new JLabel() {
+        @Override
+        public void repaint(long tm, int x, int y, int width, int height) {
+          repaints.incrementAndGet();
+        }
+      };
+      repaints.set(0);
+      final BufferedImage image = new BufferedImage(16, 16, BufferedImage.TYPE_INT_ARGB);
+      final Graphics2D g = image.createGraphics();
+      icon.paintIcon(label, g, 0, 0);
+      assertFalse(hasPixels(image));
+
+      assertEquals(1, tasks.size());
+      tasks.get(0).run();
+      assertTrue(((AsyncIcon)icon).isLoaded());
+      SwingUtilities.invokeAndWait(new Runnable() {
+        @Override
+        public void run() {
+        }
+      });
+      assertEquals(1, repaints.get());
+
+      icon.paintIcon(label, g, 0, 0);
+      g.dispose();
+      assertTrue(hasPixels(image));
+
+      // cached icons don't need to be loaded again
+      assertFalse(IconLoader.getIconAsync(getClass().getResource("/icons/print.png")) instanceof AsyncIcon);
+    }
+    finally {
+      IconLoader.setAsyncExecutor(null);
+      IconLoader.setIconCache(old);
+    }
+  }
+
+  public void testAsyncIconSizeIsReadFromHeader() throws Exception {
+    final IconCache old = IconLoader.getIconCache();
+    IconLoader.setIconCache(null);
+    final List<Runnable> tasks = new ArrayList<Runnable>();
+    IconLoader.setAsyncExecutor(new Executor() {
+      @Override
+      public void execute(Runnable command) {
+        tasks.add(command);
+      }
+    });
+    setRetina(false);
+    try {
+      final Icon icon = IconLoader.getIconAsync(getClass().getResource("/icons/print.png"));
+      assertTrue(icon instanceof AsyncIcon);
+      assertEquals(16, icon.getIconWidth());
+      assertEquals(16, icon.getIconHeight());
+      // nothing is decoded before the task runs
+      assertEquals(1, tasks.size());
+      assertFalse(((AsyncIcon)icon).isLoaded());
+    }
+    finally {
+      IconLoader.setAsyncExecutor(null);
+      IconLoader.setIconCache(old);
+    }
+  }
+
+  public void testAsyncIconWithUnknownSize() throws Exception {
+    final IconCache old = IconLoader.getIconCache();
+    IconLoader.setIconCache(null);
+    final List<Runnable> tasks = new ArrayList<Runnable>();
+    IconLoader.setAsyncExecutor(new Executor() {
+      @Override
+      public void execute(Runnable command) {
+        tasks.add(command);
+      }
+    });
+    setRetina(false);
+    try {
+      // the JPEG header isn't parsed, so the size is only known once the image is decoded
+      @SuppressWarnings("UndesirableClassUsage")
+      final BufferedImage jpeg = new BufferedImage(16, 16, BufferedImage.TYPE_INT_RGB);
+      final File file = File.createTempFile("icon", ".jpg");
+      file.deleteOnExit();
+      assertTrue(ImageIO.write(jpeg, "jpg", file));
+      final Icon icon = IconLoader.getIconAsync(file.toURI().toURL());
+      assertTrue(icon instanceof AsyncIcon);
+      assertEquals(0, icon.getIconWidth());
+
+      final AtomicInteger revalidations = new AtomicInteger();
+      final JLabel label = new JLabel() {
+        @Override
+        public void revalidate() {
+          revalidations.incrementAndGet();
+        }
+      };
+      final BufferedImage image = new BufferedImage(16, 16, BufferedImage.TYPE_INT_ARGB);
+      final Graphics2D g = image.createGraphics();
+      icon.paintIcon(label, g, 0, 0);
+      g.dispose();
+      revalidations.set(0);
+
+      assertEquals(1, tasks.size());
+      tasks.get(0).run();
+      SwingUtilities.invokeAndWait(new Runnable() {
+        @Override
+        public void run() {
+        }
+      });
+      assertEquals(16, icon.getIconWidth());
+      assertEquals(16, icon.getIconHeight());
+      assertEquals(1, revalidations.get());
+    }
+    finally {
+      IconLoader.setAsyncExecutor(null);
+      IconLoader.setIconCache(old);
+    }
+  }
+
+  public void testDisabledIconIsCached() throws Exception {
+    setRetina(false);
+    final Icon icon = IconLoader.getIcon(getClass().getResource("/icons/print.png"));
+    final Icon disabled = IconLoader.getDisabledIcon(icon);
+    assertNotNull(disabled);
+    assertSame(disabled, IconLoader.getDisabledIcon(icon));
+
+    final LookAndFeel oldLaf = UIManager.getLookAndFeel();
+    UIManager.setLookAndFeel(new MetalLookAndFeel());
+    try {
+      final Icon afterLafChange = IconLoader.getDisabledIcon(icon);
+      assertNotSame(disabled, afterLafChange);
+      assertEquals(icon.getIconWidth(), afterLafChange.getIconWidth());
+    }
+    finally {
+      UIManager.setLookAndFeel(oldLaf);
+    }
+  }
+
+  public void testPreload() throws Exception {
+    final IconCache old = IconLoader.getIconCache();
+    final IconCache cache = new IconCache(16, 1024 * 1024, IconCache.ValueType.STRONG);
+    IconLoader.setIconCache(cache);
+    final ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      setRetina(false);
+      final URL missing = new URL(getClass().getResource("/icons/print.png"), "missing.png");
+      final Map<URL, Throwable> failures = IconLoader.preload(Arrays.asList(
+        getClass().getResource("/icons/print.png"),
+        getClass().getResource("/icons/printPreview.png"),
+        missing), executor).get(10, TimeUnit.SECONDS);
+
+      assertEquals(1, failures.size());
+      assertTrue(failures.containsKey(missing));
+      assertEquals(2, cache.size());
+
+      IconLoader.setIconCache(null);
+      assertTrue(IconLoader.preload(Collections.singletonList(missing), executor).get(10, TimeUnit.SECONDS).isEmpty());
+    }
+    finally {
+      executor.shutdown();
+      IconLoader.setIconCache(old);
+    }
+  }
+
+  public void testConcurrentLoadsDecodeOnce() throws Exception {
+    final IconCache oldCache = IconLoader.getIconCache();
+    final ImageDecoder oldDecoder = ImageLoader.getDecoder();
+    final AtomicInteger decodes = new AtomicInteger();
+    final CountDownLatch decoding = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    IconLoader.setIconCache(null);
+    ImageLoader.setDecoder(new ImageDecoder() {
+      @Override
+      public Image decode(ByteBuffer data) throws IOException {
+        decodes.incrementAndGet();
+        decoding.countDown();
+        try {
+          release.await(10, TimeUnit.SECONDS);
+        }
+        catch (InterruptedException e) {
+          throw new IOException(e.toString());
+        }
+        return new ImageIODecoder().decode(data);
+      }
+    });
+    final ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      final URL url = getClass().getResource("/icons/print.png");
+      final List<Future<ImmutableImageIcon>> icons = new ArrayList<Future<ImmutableImageIcon>>();
+      for (int i = 0; i < 4; i++) {
+        icons.add(executor.submit(new Callable<ImmutableImageIcon>() {
+          @Override
+          public ImmutableImageIcon call() {
+            return IconLoader.loadIcon(url, 1);
+          }
+        }));
+      }
+      assertTrue(decoding.await(10, TimeUnit.SECONDS));
+      awaitWaiters(url, 4);
+      release.countDown();
+
+      final Image image = icons.get(0).get(10, TimeUnit.SECONDS).getImage();
+      for (Future<ImmutableImageIcon> icon : icons) {
+        assertSame(image, icon.get(10, TimeUnit.SECONDS).getImage());
+      }
+      assertEquals(1, decodes.get());
+    }
+    finally {
+      release.countDown();
+      executor.shutdown();
+      ImageLoader.setDecoder(oldDecoder);
+      IconLoader.setIconCache(oldCache);
+    }
+  }
+
+  public void testLoadIsCancelledWhenPreloadIsCancelled() throws Exception {
+    final IconCache oldCache = IconLoader.getIconCache();
+    final ImageDecoder oldDecoder = ImageLoader.getDecoder();
+    final CountDownLatch decoding = new CountDownLatch(1);
+    final CountDownLatch interrupted = new CountDownLatch(1);
+    IconLoader.setIconCache(new IconCache(16, 1024 * 1024, IconCache.ValueType.STRONG));
+    ImageLoader.setDecoder(new ImageDecoder() {
+      @Override
+      public Image decode(ByteBuffer data) throws IOException {
+        decoding.countDown();
+        try {
+          new CountDownLatch(1).await(10, TimeUnit.SECONDS);
+        }
+        catch (InterruptedException e) {
+          interrupted.countDown();
+          Thread.currentThread().interrupt();
+        }
+        throw new IOException("cancelled");
+      }
+    });
+    final ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      final URL url = getClass().getResource("/icons/printPreview.png");
+      final Future<Map<URL, Throwable>> preload = IconLoader.preload(Collections.singletonList(url), executor);
+      assertTrue(decoding.await(10, TimeUnit.SECONDS));
+      assertTrue(preload.cancel(true));
+
+      // the load was stopped and forgotten
+      assertTrue(interrupted.await(10, TimeUnit.SECONDS));
+      awaitWaiters(url, 0);
+    }
+    finally {
+      executor.shutdown();
+      ImageLoader.setDecoder(oldDecoder);
+      IconLoader.setIconCache(oldCache);
+    }
+  }
+
+  public void testInterruptDoesNotFailTheLoad() throws Exception {
+    final IconCache oldCache = IconLoader.getIconCache();
+    final ImageDecoder oldDecoder = ImageLoader.getDecoder();
+    final CountDownLatch decoding = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    IconLoader.setIconCache(null);
+    ImageLoader.setDecoder(new ImageDecoder() {
+      @Override
+      public Image decode(ByteBuffer data) throws IOException {
+        decoding.countDown();
+        try {
+          release.await(10, TimeUnit.SECONDS);
+        }
+        catch (InterruptedException e) {
+          throw new IOException(e.toString());
+        }
+        return new ImageIODecoder().decode(data);
+      }
+    });
+    try {
+      final URL url = getClass().getResource("/icons/printPreview.png");
+      final AtomicReference<Icon> result = new AtomicReference<Icon>();
+      final AtomicBoolean interruptKept = new AtomicBoolean();
+      final Thread waiter = new Thread() {
+        @Override
+        public void run() {
+          result.set(IconLoader.loadIcon(url, 1));
+          interruptKept.set(isInterrupted());
+        }
+      };
+      // the owner decodes on its own thread, the waiter gets interrupted while it waits for it
+      final Thread owner = new Thread() {
+        @Override
+        public void run() {
+          interrupt();
+          IconLoader.loadIcon(url, 1);
+        }
+      };
+      owner.start();
+      assertTrue(decoding.await(10, TimeUnit.SECONDS));
+      waiter.start();
+      awaitWaiters(url, 2);
+      waiter.interrupt();
+      release.countDown();
+      waiter.join(10000);
+      owner.join(10000);
+
+      assertNotNull(result.get());
+      assertTrue(interruptKept.get());
+    }
+    finally {
+      release.countDown();
+      ImageLoader.setDecoder(oldDecoder);
+      IconLoader.setIconCache(oldCache);
+    }
+  }
+
+  private static void awaitWaiters(URL url, int count) throws InterruptedException {
+    final long deadline = System.currentTimeMillis() + 10000;
+    while (IconLoader.getWaiterCount(url, 1, null) != count) {
+      assertTrue("waiter count didn't reach " + count, System.currentTimeMillis() < deadline);
+      Thread.sleep(1);
+    }
+  }
+
+  private static boolean hasPixels(BufferedImage image) {
+    for (int y = 0; y < image.getHeight(); y++) {
+      for (int x = 0; x < image.getWidth(); x++) {
+        if (image.getRGB(x, y) != 0) return true;
+      }
+    }
+    return false;
+  }
 }
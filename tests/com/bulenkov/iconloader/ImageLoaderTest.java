@@ -0,0 +1,276 @@
+/*
+ * Copyright 2000-2016 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bulenkov.iconloader;
+
+import com.bulenkov.iconloader.util.DiskImageCache;
+import com.bulenkov.iconloader.util.ImageDecoder;
+import com.bulenkov.iconloader.util.ImageIODecoder;
+import com.bulenkov.iconloader.util.ImageLoader;
+import com.bulenkov.iconloader.util.ImageUtil;
+import com.bulenkov.iconloader.util.ResourceIndex;
+import com.bulenkov.iconloader.util.UIUtil;
+
+import javax.imageio.ImageIO;
+import javax.swing.*;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.awt.image.FilteredImageSource;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+
+public class ImageLoaderTest extends IconLoaderTestCase {
+  public void testDecodesIntoPremultipliedImage() throws Exception {
+    final Image image = ImageLoader.loadFromUrl(getClass().getResource("/icons/print.png"), false, null);
+    assertTrue(image instanceof BufferedImage);
+    assertEquals(BufferedImage.TYPE_INT_ARGB_PRE, ((BufferedImage)image).getType());
+    assertEquals(16, image.getWidth(null));
+  }
+
+  public void testDecodesDirectBuffer() throws Exception {
+    final ByteBuffer bytes = ImageLoader.urlBytes(getClass().getResource("/icons/print@2x.png").toString(), true);
+    final ByteBuffer direct = ByteBuffer.allocateDirect(bytes.remaining());
+    direct.put(bytes).flip();
+    final Image image = new ImageIODecoder().decode(direct);
+    assertNotNull(image);
+    assertEquals(32, image.getWidth(null));
+  }
+
+  public void testLoadsLargeFileThroughMapping() throws Exception {
+    @SuppressWarnings("UndesirableClassUsage")
+    final BufferedImage noise = new BufferedImage(256, 256, BufferedImage.TYPE_INT_ARGB);
+    final Random random = new Random(0);
+    for (int y = 0; y < 256; y++) {
+      for (int x = 0; x < 256; x++) {
+        noise.setRGB(x, y, random.nextInt() | 0xff000000);
+      }
+    }
+    final File file = File.createTempFile("noise", ".png");
+    file.deleteOnExit();
+    ImageIO.write(noise, "png", file);
+    assertTrue(file.length() > 64 * 1024);
+
+    final ByteBuffer bytes = ImageLoader.urlBytes(file.toURI().toURL().toString(), true);
+    assertFalse(bytes.hasArray());
+    final Image image = ImageLoader.loadFromUrl(file.toURI().toURL(), false, null);
+    assertEquals(256, image.getWidth(null));
+    assertEquals(noise.getRGB(17, 42), ((BufferedImage)image).getRGB(17, 42));
+  }
+
+  public void testDiskCache() throws Exception {
+    final File directory = File.createTempFile("icons", "");
+    assertTrue(directory.delete());
+    final DiskImageCache diskCache = new DiskImageCache(directory);
+    ImageLoader.setDiskCache(diskCache);
+    try {
+      final URL url = getClass().getResource("/icons/print.png");
+      final BufferedImage decoded = (BufferedImage)ImageLoader.loadFromUrl(url, false, UIUtil.getGrayFilter());
+      // decoded and gray variants
+      assertEquals(2, directory.listFiles().length);
+
+      final ByteBuffer source = ImageLoader.urlBytes(url.toString(), true);
+      final BufferedImage cached = diskCache.get(url.toString(), source);
+      assertNotNull(cached);
+      assertEquals(BufferedImage.TYPE_INT_ARGB_PRE, cached.getType());
+      final BufferedImage cachedGray = (BufferedImage)ImageLoader.loadFromUrl(url, false, UIUtil.getGrayFilter());
+      assertNotSame(decoded, cachedGray);
+      assertEquals(decoded.getRGB(8, 8), cachedGray.getRGB(8, 8));
+
+      final ByteBuffer changed = ByteBuffer.allocate(source.remaining());
+      changed.put(source.duplicate()).put(0, (byte)0).rewind();
+      assertNull(diskCache.get(url.toString(), changed));
+    }
+    finally {
+      ImageLoader.setDiskCache(null);
+      diskCache.clear();
+      directory.delete();
+    }
+  }
+
+  public void testGrayFilterMatchesProducerPipeline() throws Exception {
+    final BufferedImage source = (BufferedImage)ImageLoader.loadFromUrl(getClass().getResource("/icons/print.png"), false, null);
+    final GrayFilter filter = UIUtil.getGrayFilter();
+
+    final BufferedImage fast = ImageUtil.filterRGB(source, filter);
+    final ImageIcon expected = new ImageIcon(Toolkit.getDefaultToolkit().createImage(new FilteredImageSource(source.getSource(), filter)));
+    @SuppressWarnings("UndesirableClassUsage")
+    final BufferedImage slow = new BufferedImage(source.getWidth(), source.getHeight(), BufferedImage.TYPE_INT_ARGB);
+    final Graphics2D g = slow.createGraphics();
+    g.drawImage(expected.getImage(), 0, 0, null);
+    g.dispose();
+
+    for (int y = 0; y < source.getHeight(); y++) {
+      for (int x = 0; x < source.getWidth(); x++) {
+        final int a = fast.getRGB(x, y);
+        final int b = slow.getRGB(x, y);
+        assertEquals(b >>> 24, a >>> 24);
+        assertTrue(Math.abs((a & 0xff) - (b & 0xff)) <= 1);
+      }
+    }
+  }
+
+  public void testMissingRetinaVariantIsIndexed() throws Exception {
+    final File jar = File.createTempFile("icons", ".jar");
+    jar.deleteOnExit();
+    final JarOutputStream out = new JarOutputStream(new FileOutputStream(jar));
+    try {
+      for (String name : new String[]{"print.png", "print@2x.png", "printPreview.png"}) {
+        out.putNextEntry(new JarEntry("icons/" + name));
+        copy(getClass().getResourceAsStream("/icons/" + name), out);
+      }
+      out.putNextEntry(new JarEntry("icons/my print@2x.png"));
+      copy(getClass().getResourceAsStream("/icons/print@2x.png"), out);
+    }
+    finally {
+      out.close();
+    }
+
+    final String base = "jar:" + jar.toURI().toURL() + "!/icons/";
+    assertTrue(ResourceIndex.mayExist(base + "print@2x.png"));
+    assertFalse(ResourceIndex.mayExist(base + "printPreview@2x.png"));
+    assertTrue(ResourceIndex.mayExist(base + "my%20print@2x.png"));
+    // only images are indexed
+    assertTrue(ResourceIndex.mayExist(base + "Missing.class"));
+
+    setRetina(true);
+    assertTrue(ImageLoader.loadFromUrl(new URL(base + "print.png"), true, null) instanceof JBHiDPIScaledImage);
+    final Image image = ImageLoader.loadFromUrl(new URL(base + "printPreview.png"), true, null);
+    assertNotNull(image);
+    assertFalse(image instanceof JBHiDPIScaledImage);
+  }
+
+  public void testVariantScales() throws Exception {
+    assertEquals(0, ImageLoader.getVariantScales(1).length);
+    assertTrue(Arrays.equals(new float[]{1.5f, 2, 3}, ImageLoader.getVariantScales(1.25f)));
+    assertTrue(Arrays.equals(new float[]{2, 3, 1.5f}, ImageLoader.getVariantScales(1.75f)));
+    assertTrue(Arrays.equals(new float[]{3, 2, 1.5f}, ImageLoader.getVariantScales(3)));
+    assertEquals("icons/print@1.5x.png", ImageLoader.getScaledName("icons/print.png", 1.5f));
+    assertEquals("icons/print@2x.png", ImageLoader.getRetina2XName("icons/print.png"));
+  }
+
+  public void testFractionalScale() throws Exception {
+    final URL url = getClass().getResource("/icons/print.png");
+    final Image image = ImageLoader.loadFromUrl(url, 1.5f, null);
+    assertTrue(image instanceof JBHiDPIScaledImage);
+    final JBHiDPIScaledImage hidpi = (JBHiDPIScaledImage)image;
+    assertEquals(16, hidpi.getWidth());
+    assertEquals(1.5f, hidpi.getScale());
+    // the @2x variant is resampled once to the device size
+    assertEquals(24, hidpi.getDelegate().getWidth(null));
+    assertEquals(new Dimension(16, 16), ImageLoader.loadSizeFromUrl(url, 1.5f));
+
+    @SuppressWarnings("UndesirableClassUsage")
+    final BufferedImage target = new BufferedImage(24, 24, BufferedImage.TYPE_INT_ARGB);
+    final Graphics2D g = target.createGraphics();
+    g.scale(1.5, 1.5);
+    UIUtil.drawImage(g, image, 0, 0, null);
+    g.dispose();
+    final BufferedImage expected = (BufferedImage)hidpi.getDelegate();
+    assertEquals(expected.getRGB(12, 12), target.getRGB(12, 12));
+  }
+
+  public void testFallsBackToToolkit() throws Exception {
+    final ImageDecoder old = ImageLoader.getDecoder();
+    ImageLoader.setDecoder(new ImageDecoder() {
+      @Override
+      public Image decode(ByteBuffer data) {
+        return null;
+      }
+    });
+    try {
+      final Image image = ImageLoader.loadFromUrl(getClass().getResource("/icons/print.png"), false, null);
+      assertNotNull(image);
+      assertFalse(image instanceof BufferedImage);
+      assertEquals(16, image.getWidth(null));
+    }
+    finally {
+      ImageLoader.setDecoder(old);
+    }
+  }
+
+  public void testLoadsRasterWithoutToolkit() throws Exception {
+    final URL url = getClass().getResource("/icons/print.png");
+    final BufferedImage retina = ImageLoader.loadRaster(url, 2, null);
+    assertNotNull(retina);
+    assertEquals(32, retina.getWidth());
+    assertEquals(BufferedImage.TYPE_INT_ARGB_PRE, retina.getType());
+
+    // no variant, the 1x image is resampled
+    final BufferedImage preview = ImageLoader.loadRaster(new URL(url, "printPreview.png"), 3, UIUtil.getGrayFilter());
+    assertNotNull(preview);
+    assertEquals(48, preview.getWidth());
+
+    final BufferedImage svg = ImageLoader.loadRaster(new URL(url, "shapes.svg"), 1.5f, null);
+    assertNotNull(svg);
+    assertEquals(24, svg.getWidth());
+
+    final ImageDecoder old = ImageLoader.getDecoder();
+    ImageLoader.setDecoder(new ImageDecoder() {
+      @Override
+      public Image decode(ByteBuffer data) {
+        return null;
+      }
+    });
+    try {
+      // falls back to ImageIO rather than to the toolkit
+      assertEquals(16, ImageLoader.loadRaster(url, 1, null).getWidth());
+    }
+    finally {
+      ImageLoader.setDecoder(old);
+    }
+  }
+
+  public void testLoadRasterConvertsCustomDecoderImages() throws Exception {
+    final URL url = getClass().getResource("/icons/printPreview.png");
+    final ImageDecoder old = ImageLoader.getDecoder();
+    ImageLoader.setDecoder(new ImageDecoder() {
+      @Override
+      public Image decode(ByteBuffer data) throws IOException {
+        final Image image = new ImageIODecoder().decode(data);
+        // a toolkit image which is fully loaded, but not a BufferedImage
+        return image == null ? null : new ImageIcon(Toolkit.getDefaultToolkit().createImage(image.getSource())).getImage();
+      }
+    });
+    try {
+      final BufferedImage raster = ImageLoader.loadRaster(url, 2, null);
+      assertNotNull(raster);
+      assertEquals(32, raster.getWidth());
+    }
+    finally {
+      ImageLoader.setDecoder(old);
+    }
+  }
+
+  private static void copy(InputStream in, OutputStream out) throws IOException {
+    try {
+      final byte[] buffer = new byte[1024];
+      int n;
+      while ((n = in.read(buffer)) > 0) out.write(buffer, 0, n);
+    }
+    finally {
+      in.close();
+    }
+  }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright 2000-2016 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.bulenkov.iconloader;
+
+import com.bulenkov.iconloader.util.ImageLoader;
+import com.bulenkov.iconloader.util.SvgImage;
+
+import javax.swing.*;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+
+public class SvgImageTest extends IconLoaderTestCase {
+  public void testRasterize() throws Exception {
+    final SvgImage svg = SvgImage.parse(ImageLoader.urlBytes(getClass().getResource("/icons/shapes.svg").toString(), true));
+    assertEquals(16f, svg.getWidth());
+    assertEquals(16f, svg.getHeight());
+
+    final BufferedImage image = svg.rasterize(32, 32);
+    assertEquals(Color.RED.getRGB(), image.getRGB(4, 28));
+    assertEquals(Color.BLUE.getRGB(), image.getRGB(28, 4));
+    // half transparent half disc
+    assertEquals(0x7f, image.getRGB(8, 6) >>> 24, 1);
+    assertEquals(0, image.getRGB(8, 12));
+    // stroked, not filled circle
+    assertEquals(Color.BLACK.getRGB(), image.getRGB(24, 18));
+    assertEquals(0, image.getRGB(24, 24));
+  }
+
+  public void testLoadPerScale() throws Exception {
+    final URL url = getClass().getResource("/icons/shapes.svg");
+    assertEquals(new Dimension(16, 16), ImageLoader.loadSizeFromUrl(url, 2f));
+
+    final Image image = ImageLoader.loadFromUrl(url, 1, null);
+    assertTrue(image instanceof BufferedImage);
+    assertEquals(16, image.getWidth(null));
+
+    final Image scaled = ImageLoader.loadFromUrl(url, 1.5f, null);
+    assertTrue(scaled instanceof JBHiDPIScaledImage);
+    assertEquals(16, scaled.getWidth(null));
+    assertEquals(24, ((JBHiDPIScaledImage)scaled).getDelegate().getWidth(null));
+
+    setRetina(false);
+    final Icon icon = IconLoader.getIcon(url);
+    assertNotNull(icon);
+    assertEquals(16, icon.getIconWidth());
+  }
+
+  public void testMalformed() throws Exception {
+    try {
+      SvgImage.parse(ByteBuffer.wrap("<svg width='16' height='16'><path d='M 0 0 X 1'/></svg>".getBytes("UTF-8")));
+      fail();
+    }
+    catch (IOException ignore) {
+    }
+    try {
+      SvgImage.parse(ByteBuffer.wrap("<html/>".getBytes("UTF-8")));
+      fail();
+    }
+    catch (IOException ignore) {
+    }
+  }
+}